@@ -0,0 +1,102 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationClassRefAuthority;
+import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationMethodRefAuthority;
+import net.shibboleth.idp.oidc.config.OIDCConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares extracting acr and amr by parsing the granted authorities, as id
+ * token creation did before, with reading the typed request extensions.
+ * Run with the GC profiler to compare the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcrAmrBenchmark {
+    /**
+     * The authorities.
+     */
+    private List<GrantedAuthority> authorities;
+
+    /**
+     * The extensions.
+     */
+    private Map<String, Serializable> extensions;
+
+    /**
+     * Build the fixtures.
+     */
+    @Setup
+    public void setUp() {
+        authorities = Fixtures.authorities();
+        extensions = Fixtures.extensions();
+    }
+
+    /**
+     * Parse the authorities.
+     *
+     * @param bh the blackhole
+     */
+    @Benchmark
+    public void fromAuthorities(final Blackhole bh) {
+        for (final GrantedAuthority authority : authorities) {
+            final AuthenticationClassRefAuthority acr =
+                    AuthenticationClassRefAuthority.getAuthenticationClassRefAuthority(authority);
+            if (acr != null) {
+                bh.consume(acr.getAuthority());
+            }
+            final AuthenticationMethodRefAuthority amr =
+                    AuthenticationMethodRefAuthority.getAuthenticationClassRefAuthority(authority);
+            if (amr != null) {
+                bh.consume(amr.getAuthority());
+            }
+        }
+    }
+
+    /**
+     * Read the extensions.
+     *
+     * @param bh the blackhole
+     */
+    @Benchmark
+    public void fromExtensions(final Blackhole bh) {
+        bh.consume(extensions.get(OIDCConstants.ACR));
+        bh.consume(extensions.get(OIDCConstants.AMR));
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import net.shibboleth.idp.attribute.EmptyAttributeValue;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.oidc.client.userinfo.ClaimMappingEngine;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfo;
+import org.mitre.openid.connect.model.DefaultAddress;
+import org.mitre.openid.connect.model.DefaultUserInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the compiled {@link ClaimMappingEngine} with the switch that mapped
+ * attributes onto claims before it, for a user with 30 released attributes:
+ * the 20 standard claims, 3 address fields and 7 custom claims. The switch
+ * ignores the attributes it does not know. Run with the GC profiler to compare
+ * the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClaimMappingBenchmark {
+    /**
+     * The standard claims, each released from the attribute of the same id.
+     */
+    private static final String[] STANDARD_CLAIMS = {"sub", "name", "given_name", "family_name", "middle_name",
+        "nickname", "preferred_username", "profile", "picture", "website", "email", "email_verified", "gender",
+        "birthdate", "zoneinfo", "locale", "phone_number", "phone_number_verified", "updated_at", "address"};
+
+    /**
+     * The other attributes of the user.
+     */
+    private static final String[] OTHER_ATTRIBUTES = {"street", "l", "postalCode", "isMemberOf",
+        "eduPersonAffiliation", "eduPersonEntitlement", "department", "title", "employeeNumber", "campus"};
+
+    /**
+     * The released attributes.
+     */
+    private List<IdPAttribute> attributes;
+
+    /**
+     * The engine under test.
+     */
+    private ClaimMappingEngine engine;
+
+    /**
+     * Build the attributes and compile the engine.
+     */
+    @Setup
+    public void setUp() {
+        attributes = new ArrayList<>();
+        for (final String id : STANDARD_CLAIMS) {
+            attributes.add(attribute(id, "email_verified".equals(id) || "phone_number_verified".equals(id)
+                ? "true" : id + "-value"));
+        }
+        for (final String id : OTHER_ATTRIBUTES) {
+            attributes.add(attribute(id, id + "-1", id + "-2", id + "-3"));
+        }
+
+        engine = new ClaimMappingEngine();
+        engine.setClaimAttributes("address.street_address:street,address.locality:l,address.postal_code:postalCode,"
+            + "groups:isMemberOf,affiliation:eduPersonAffiliation,entitlement:eduPersonEntitlement,"
+            + "department:department,title:title,employee_number:employeeNumber,campus:campus");
+        engine.setMultiValuedClaims("groups,affiliation,entitlement");
+        engine.initialize();
+    }
+
+    /**
+     * Map with the compiled engine.
+     *
+     * @return the user info
+     */
+    @Benchmark
+    public ShibbolethUserInfo engine() {
+        final ShibbolethUserInfo userInfo = new ShibbolethUserInfo();
+        engine.map(userInfo, attributes);
+        return userInfo;
+    }
+
+    /**
+     * Map with the switch.
+     *
+     * @return the user info
+     */
+    @Benchmark
+    public DefaultUserInfo legacySwitch() {
+        final DefaultUserInfo userInfo = new DefaultUserInfo();
+        for (final IdPAttribute attribute : attributes) {
+            setUserInfoClaimByAttribute(userInfo, attribute);
+        }
+        return userInfo;
+    }
+
+    /**
+     * Build an attribute.
+     *
+     * @param id     the id
+     * @param values the values
+     * @return the attribute
+     */
+    private static IdPAttribute attribute(final String id, final String... values) {
+        final List<IdPAttributeValue<?>> attributeValues = new ArrayList<>();
+        for (final String value : values) {
+            attributeValues.add(new StringAttributeValue(value));
+        }
+        final IdPAttribute attribute = new IdPAttribute(id);
+        attribute.setValues(Collections.unmodifiableList(attributeValues));
+        return attribute;
+    }
+
+    /**
+     * The switch the engine replaced, without its logging.
+     *
+     * @param userInfo  the user info
+     * @param attribute the attribute
+     */
+    private static void setUserInfoClaimByAttribute(final DefaultUserInfo userInfo, final IdPAttribute attribute) {
+        switch (attribute.getId()) {
+            case "sub":
+                userInfo.setSub(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "name":
+                userInfo.setName(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "given_name":
+                userInfo.setGivenName(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "family_name":
+                userInfo.setFamilyName(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "middle_name":
+                userInfo.setMiddleName(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "nickname":
+                userInfo.setNickname(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "preferred_username":
+                userInfo.setPreferredUsername(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "profile":
+                userInfo.setProfile(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "picture":
+                userInfo.setPicture(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "website":
+                userInfo.setWebsite(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "email":
+                userInfo.setEmail(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "email_verified":
+                userInfo.setEmailVerified(Boolean.valueOf(getAttributeValue(attribute).getValue().toString()));
+                break;
+            case "gender":
+                userInfo.setGender(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "birthdate":
+                userInfo.setBirthdate(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "zoneinfo":
+                userInfo.setZoneinfo(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "locale":
+                userInfo.setLocale(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "phone_number":
+                userInfo.setPhoneNumber(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "phone_number_verified":
+                userInfo.setPhoneNumberVerified(
+                    Boolean.valueOf(getAttributeValue(attribute).getValue().toString()));
+                break;
+            case "updated_at":
+                userInfo.setUpdatedTime(getAttributeValue(attribute).getValue().toString());
+                break;
+            case "address":
+                final DefaultAddress address = new DefaultAddress();
+                address.setFormatted(getAttributeValue(attribute).getValue().toString());
+                userInfo.setAddress(address);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Gets attribute value.
+     *
+     * @param attribute the attribute
+     * @return the attribute value
+     */
+    private static IdPAttributeValue<?> getAttributeValue(final IdPAttribute attribute) {
+        if (!attribute.getValues().isEmpty()) {
+            return attribute.getValues().get(0);
+        }
+        return new EmptyAttributeValue(EmptyAttributeValue.EmptyType.NULL_VALUE);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import net.shibboleth.idp.oidc.client.userinfo.authn.IdTokenMetrics;
+import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationClassRefAuthority;
+import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationMethodRefAuthority;
+import net.shibboleth.idp.oidc.config.OIDCConstants;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.signer.service.impl.DefaultJWTSigningAndValidationService;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.io.Serializable;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared fixtures for the benchmarks: generated keys, a stub configuration
+ * and access tokens shaped like the ones the IdP issues.
+ */
+final class Fixtures {
+    /**
+     * The issuer of the fixtures.
+     */
+    static final String ISSUER = "https://idp.example.org/idp";
+
+    /**
+     * The client id of the fixtures.
+     */
+    static final String CLIENT_ID = "benchmark-client";
+
+    /**
+     * The subject of the fixtures.
+     */
+    static final String SUBJECT = "jdoe";
+
+    /**
+     * The acr of the fixtures.
+     */
+    static final String ACR = "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport";
+
+    /**
+     * The amr of the fixtures.
+     */
+    static final String AMR = "authn/Password";
+
+    /**
+     * Instantiates a new Fixtures.
+     */
+    private Fixtures() {
+    }
+
+    /**
+     * Generate an RSA key.
+     *
+     * @param kid the key id
+     * @return the key
+     * @throws Exception if the key cannot be generated
+     */
+    static RSAKey rsaKey(final String kid) throws Exception {
+        final KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        final KeyPair pair = gen.generateKeyPair();
+        return new RSAKey.Builder((RSAPublicKey) pair.getPublic())
+                .privateKey((RSAPrivateKey) pair.getPrivate()).keyID(kid).build();
+    }
+
+    /**
+     * Generate a P-256 EC key.
+     *
+     * @param kid the key id
+     * @return the key
+     * @throws Exception if the key cannot be generated
+     */
+    static ECKey ecKey(final String kid) throws Exception {
+        final KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+        gen.initialize(new ECGenParameterSpec("secp256r1"));
+        final KeyPair pair = gen.generateKeyPair();
+        return new ECKey.Builder(ECKey.Curve.P_256, (ECPublicKey) pair.getPublic())
+                .privateKey((ECPrivateKey) pair.getPrivate()).keyID(kid).build();
+    }
+
+    /**
+     * Build a key store over the keys.
+     *
+     * @param keys the keys
+     * @return the key store
+     */
+    static JWKSetKeyStore keyStore(final JWK... keys) {
+        return new JWKSetKeyStore(new JWKSet(Lists.newArrayList(keys)));
+    }
+
+    /**
+     * Build the signing service over the key store.
+     *
+     * @param keyStore the key store
+     * @param kid      the default key id
+     * @param alg      the default alg
+     * @return the signing service
+     * @throws Exception if the service cannot be built
+     */
+    static DefaultJWTSigningAndValidationService signingService(final JWKSetKeyStore keyStore, final String kid,
+                                                                final String alg) throws Exception {
+        final DefaultJWTSigningAndValidationService svc = new DefaultJWTSigningAndValidationService(keyStore);
+        svc.setDefaultSignerKeyId(kid);
+        svc.setDefaultSigningAlgorithmName(alg);
+        return svc;
+    }
+
+    /**
+     * Build the configuration bean.
+     *
+     * @return the configuration bean
+     */
+    static ConfigurationPropertiesBean config() {
+        final ConfigurationPropertiesBean bean = new ConfigurationPropertiesBean();
+        bean.setIssuer(ISSUER);
+        return bean;
+    }
+
+    /**
+     * Build id token metrics backed by a private registry.
+     *
+     * @return the metrics
+     */
+    static IdTokenMetrics metrics() {
+        final IdTokenMetrics metrics = new IdTokenMetrics();
+        metrics.setJmxEnabled(false);
+        metrics.setMetricRegistry(new MetricRegistry());
+        metrics.initialize();
+        return metrics;
+    }
+
+    /**
+     * Build the authorities that the IdP attaches to an authenticated user.
+     *
+     * @return the authorities
+     */
+    static List<GrantedAuthority> authorities() {
+        final List<GrantedAuthority> authorities = Lists.newArrayList();
+        authorities.add(new SimpleGrantedAuthority(OIDCConstants.ROLE_USER));
+        authorities.add(new SimpleGrantedAuthority(OIDCConstants.ROLE_CLIENT + "_" + CLIENT_ID));
+        authorities.add(new SimpleGrantedAuthority(new AuthenticationClassRefAuthority(ACR).toString()));
+        authorities.add(new SimpleGrantedAuthority(new AuthenticationMethodRefAuthority(AMR).toString()));
+        return authorities;
+    }
+
+    /**
+     * Build the request extensions recorded at authentication time.
+     *
+     * @return the extensions
+     */
+    static Map<String, Serializable> extensions() {
+        final Map<String, Serializable> extensions = new HashMap<>();
+        extensions.put(OIDCConstants.AUTH_TIME, System.currentTimeMillis());
+        extensions.put(OIDCConstants.ACR, ACR);
+        extensions.put(OIDCConstants.AMR, AMR);
+        extensions.put("nonce", "n-0S6_WzA2Mj");
+        return extensions;
+    }
+
+    /**
+     * Build the OAuth2 request.
+     *
+     * @param responseTypes the response types
+     * @return the request
+     */
+    static OAuth2Request request(final Set<String> responseTypes) {
+        return new OAuth2Request(new HashMap<String, String>(), CLIENT_ID, authorities(), true,
+                Sets.newHashSet("openid", "profile", "email"), null, "https://client.example.org/cb",
+                responseTypes, extensions());
+    }
+
+    /**
+     * Build an access token associated with the request.
+     *
+     * @param request the request
+     * @return the access token
+     */
+    static OAuth2AccessTokenEntity accessToken(final OAuth2Request request) {
+        final AuthenticationHolderEntity holder = new AuthenticationHolderEntity();
+        holder.setAuthentication(new OAuth2Authentication(request,
+                new UsernamePasswordAuthenticationToken(SUBJECT, null, authorities())));
+
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setAuthenticationHolder(holder);
+        token.setExpiration(new Date(System.currentTimeMillis() + 3600000L));
+        token.setJwt(new PlainJWT(new JWTClaimsSet.Builder()
+                .issuer(ISSUER).subject(SUBJECT).jwtID("benchmark-token").build()));
+        return token;
+    }
+}
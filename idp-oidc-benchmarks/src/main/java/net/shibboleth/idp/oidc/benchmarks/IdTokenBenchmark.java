@@ -0,0 +1,186 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import com.google.common.collect.Sets;
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.JWT;
+import net.shibboleth.idp.oidc.client.userinfo.authn.ClientEncrypterCache;
+import net.shibboleth.idp.oidc.client.userinfo.authn.JWTSignerRegistry;
+import net.shibboleth.idp.oidc.client.userinfo.authn.JWTSigningPipeline;
+import net.shibboleth.idp.oidc.client.userinfo.authn.ShibbolethAcrAwareTokenService;
+import net.shibboleth.idp.oidc.util.SecureRandomIdentifierGenerator;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.encryption.service.JWTEncryptionAndDecryptionService;
+import org.mitre.jwt.encryption.service.impl.DefaultJWTEncryptionAndDecryptionService;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link ShibbolethAcrAwareTokenService#createIdToken} over signing
+ * algorithm, encryption and response type. Run with the GC profiler (the default
+ * through {@link BenchmarkRunner}) to also report the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdTokenBenchmark {
+    /**
+     * The signing alg of the id token.
+     */
+    @Param({"RS256", "ES256", "HS256", "none"})
+    private String alg;
+
+    /**
+     * Whether the id token is encrypted.
+     */
+    @Param({"false", "true"})
+    private boolean encrypted;
+
+    /**
+     * The response types of the request.
+     */
+    @Param({"code", "id_token token"})
+    private String responseType;
+
+    /**
+     * The service under test.
+     */
+    private ShibbolethAcrAwareTokenService service;
+
+    /**
+     * The client.
+     */
+    private ClientDetailsEntity client;
+
+    /**
+     * The request.
+     */
+    private OAuth2Request request;
+
+    /**
+     * The access token.
+     */
+    private OAuth2AccessTokenEntity accessToken;
+
+    /**
+     * Build the service and its fixtures.
+     *
+     * @throws Exception if the fixtures cannot be built
+     */
+    @Setup
+    public void setUp() throws Exception {
+        final RSAKey rsaKey = Fixtures.rsaKey("rsa1");
+        final ECKey ecKey = Fixtures.ecKey("ec1");
+        final JWKSetKeyStore keyStore = Fixtures.keyStore(rsaKey, ecKey);
+        final boolean ec = "ES256".equals(alg);
+        final String defaultAlg = ec ? "ES256" : "RS256";
+
+        final JWTSignerRegistry registry = new JWTSignerRegistry();
+        registry.setKeyStore(keyStore);
+        registry.setJwtService(Fixtures.signingService(keyStore, ec ? "ec1" : "rsa1", defaultAlg));
+
+        final JWTSigningPipeline pipeline = new JWTSigningPipeline();
+        pipeline.setSignerRegistry(registry);
+
+        final RSAKey encryptionKey = Fixtures.rsaKey("enc1");
+        final DefaultJWTEncryptionAndDecryptionService encrypter =
+                new DefaultJWTEncryptionAndDecryptionService(Fixtures.keyStore(encryptionKey));
+        encrypter.setDefaultEncryptionKeyId("enc1");
+        encrypter.setDefaultDecryptionKeyId("enc1");
+
+        service = new ShibbolethAcrAwareTokenService();
+        service.setConfigBean(Fixtures.config());
+        service.setJwtService(Fixtures.signingService(keyStore, ec ? "ec1" : "rsa1", defaultAlg));
+        service.setSignerRegistry(registry);
+        service.setSigningPipeline(pipeline);
+        service.setIdTokenMetrics(Fixtures.metrics());
+        service.setEncrypters(new FixedEncrypterCache(encrypter));
+        service.setIdGenerator(new SecureRandomIdentifierGenerator());
+
+        client = new ClientDetailsEntity();
+        client.setClientId(Fixtures.CLIENT_ID);
+        client.setClientSecret("c1d2e3f4a5b6c7d8e9f0a1b2c3d4e5f6a7b8c9d0e1f2a3b4");
+        client.setIdTokenValiditySeconds(300);
+        client.setIdTokenSignedResponseAlg(JWSAlgorithm.parse(alg));
+        if (encrypted) {
+            client.setIdTokenEncryptedResponseAlg(JWEAlgorithm.RSA_OAEP_256);
+            client.setIdTokenEncryptedResponseEnc(EncryptionMethod.A128CBC_HS256);
+            client.setJwks(new JWKSet(encryptionKey.toPublicJWK()));
+        }
+
+        request = Fixtures.request(Sets.newHashSet(responseType.split(" ")));
+        accessToken = Fixtures.accessToken(request);
+    }
+
+    /**
+     * Create an id token.
+     *
+     * @return the id token
+     */
+    @Benchmark
+    public JWT createIdToken() {
+        return service.createIdToken(client, request, new Date(), Fixtures.SUBJECT, accessToken);
+    }
+
+    /**
+     * Encrypter cache that always hands out the same encrypter.
+     */
+    private static final class FixedEncrypterCache extends ClientEncrypterCache {
+        /**
+         * The Encrypter.
+         */
+        private final JWTEncryptionAndDecryptionService encrypter;
+
+        /**
+         * Instantiates a new Fixed encrypter cache.
+         *
+         * @param enc the encrypter
+         */
+        FixedEncrypterCache(final JWTEncryptionAndDecryptionService enc) {
+            this.encrypter = enc;
+        }
+
+        @Override
+        public JWTEncryptionAndDecryptionService getEncrypter(final ClientDetailsEntity c) {
+            return encrypter;
+        }
+    }
+}
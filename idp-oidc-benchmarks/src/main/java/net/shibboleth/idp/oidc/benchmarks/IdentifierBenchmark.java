@@ -0,0 +1,96 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.benchmarks;
+
+import net.shibboleth.idp.oidc.util.IdentifierGenerator;
+import net.shibboleth.idp.oidc.util.SecureRandomIdentifierGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link UUID#randomUUID()}, which draws from one shared generator, with
+ * the per-thread {@link SecureRandomIdentifierGenerator}, on one thread and on as
+ * many threads as there are processors. The gap between the two shows the
+ * contention on the shared generator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierBenchmark {
+    /**
+     * The generator under test.
+     */
+    private final IdentifierGenerator generator = new SecureRandomIdentifierGenerator();
+
+    /**
+     * Random UUID on one thread.
+     *
+     * @return the identifier
+     */
+    @Benchmark
+    @Threads(1)
+    public String uuidSingleThread() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Random UUID on all processors.
+     *
+     * @return the identifier
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String uuidAllThreads() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Generator on one thread.
+     *
+     * @return the identifier
+     */
+    @Benchmark
+    @Threads(1)
+    public String generatorSingleThread() {
+        return generator.generateIdentifier();
+    }
+
+    /**
+     * Generator on all processors.
+     *
+     * @return the identifier
+     */
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String generatorAllThreads() {
+        return generator.generateIdentifier();
+    }
+}
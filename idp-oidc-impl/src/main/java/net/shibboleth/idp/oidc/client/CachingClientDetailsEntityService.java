@@ -0,0 +1,317 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.service.impl.DefaultOAuth2ClientDetailsEntityService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client service that keeps a bounded near cache of clients keyed by client id
+ * in front of the JPA repository. Every change made through this service is
+ * recorded in the client_change table; each node pulls the changes recorded
+ * since its last pull through {@link #synchronize()} and evicts the clients
+ * they name. A change made on one node therefore reaches every node within one
+ * synchronization interval, without anything but the database in common.
+ * Hits and misses are registered in the IdP metric registry under {@value #PREFIX}.
+ */
+@Service("cachingClientDetailsEntityService")
+@Primary
+public class CachingClientDetailsEntityService extends DefaultOAuth2ClientDetailsEntityService {
+    /**
+     * Prefix of all metric names.
+     */
+    public static final String PREFIX = "net.shibboleth.idp.oidc.client.cache";
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(CachingClientDetailsEntityService.class);
+
+    /**
+     * The Metric registry.
+     */
+    @Autowired(required = false)
+    @Qualifier("shibboleth.metrics.MetricRegistry")
+    private MetricRegistry metricRegistry;
+
+    /**
+     * The Jdbc template.
+     */
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * The clients by client id.
+     */
+    private Cache<String, ClientDetailsEntity> cache;
+
+    /**
+     * The change time up to which the pull has read.
+     */
+    private volatile long watermark;
+
+    /**
+     * How long clients are cached, in milliseconds, should a change go unnoticed.
+     */
+    private long cacheTimeToLive = 600000;
+
+    /**
+     * The maximum number of cached clients.
+     */
+    private long cacheMaximumSize = 1000;
+
+    /**
+     * Overlap in milliseconds applied to each pull, to absorb clock skew between nodes.
+     */
+    private long syncOverlap = 60000;
+
+    /**
+     * Build the cache and register its metrics.
+     */
+    @PostConstruct
+    public void initialize() {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheMaximumSize)
+                .expireAfterWrite(cacheTimeToLive, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        watermark = System.currentTimeMillis();
+
+        if (metricRegistry != null) {
+            metricRegistry.register(MetricRegistry.name(PREFIX, "hits"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return cache.stats().hitCount();
+                }
+            });
+            metricRegistry.register(MetricRegistry.name(PREFIX, "misses"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return cache.stats().missCount();
+                }
+            });
+            metricRegistry.register(MetricRegistry.name(PREFIX, "hitRate"), new Gauge<Double>() {
+                @Override
+                public Double getValue() {
+                    return cache.stats().hitRate();
+                }
+            });
+            metricRegistry.register(MetricRegistry.name(PREFIX, "size"), new Gauge<Long>() {
+                @Override
+                public Long getValue() {
+                    return cache.size();
+                }
+            });
+        } else {
+            log.debug("No IdP metric registry is available; client cache statistics are only logged");
+        }
+    }
+
+    /**
+     * Sets data source.
+     *
+     * @param dataSource the data source
+     */
+    @Resource(name = "dataSource")
+    public void setDataSource(final DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Override
+    public ClientDetailsEntity loadClientByClientId(final String clientId) {
+        if (Strings.isNullOrEmpty(clientId)) {
+            return super.loadClientByClientId(clientId);
+        }
+        try {
+            return cache.get(clientId, new Callable<ClientDetailsEntity>() {
+                @Override
+                public ClientDetailsEntity call() throws Exception {
+                    return loadUncachedClient(clientId);
+                }
+            });
+        } catch (final InvalidCacheLoadException e) {
+            log.debug("Client {} could not be found", clientId);
+            return null;
+        } catch (final ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new OAuth2Exception("Could not load client " + clientId, e.getCause());
+        }
+    }
+
+    /**
+     * Load the client from the repository, bypassing the cache.
+     *
+     * @param clientId the client id
+     * @return the client
+     */
+    private ClientDetailsEntity loadUncachedClient(final String clientId) {
+        log.debug("Loading client {} from the repository", clientId);
+        return super.loadClientByClientId(clientId);
+    }
+
+    @Override
+    public ClientDetailsEntity saveNewClient(final ClientDetailsEntity client) {
+        final ClientDetailsEntity saved = super.saveNewClient(client);
+        clientChanged(saved.getClientId());
+        return saved;
+    }
+
+    @Override
+    public ClientDetailsEntity updateClient(final ClientDetailsEntity oldClient, final ClientDetailsEntity newClient) {
+        final ClientDetailsEntity updated = super.updateClient(oldClient, newClient);
+        clientChanged(oldClient.getClientId());
+        if (!Strings.nullToEmpty(oldClient.getClientId()).equals(updated.getClientId())) {
+            clientChanged(updated.getClientId());
+        }
+        return updated;
+    }
+
+    @Override
+    public void deleteClient(final ClientDetailsEntity client) {
+        super.deleteClient(client);
+        clientChanged(client.getClientId());
+    }
+
+    /**
+     * Evict the client on this node and record the change for the other nodes.
+     * Changes made to the repository outside this service must be reported here.
+     *
+     * @param clientId the client id
+     */
+    public void clientChanged(final String clientId) {
+        if (Strings.isNullOrEmpty(clientId)) {
+            return;
+        }
+        cache.invalidate(clientId);
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        try {
+            if (jdbcTemplate.update("UPDATE client_change SET changed_at = ? WHERE client_id = ?",
+                    now, clientId) == 0) {
+                jdbcTemplate.update("INSERT INTO client_change (client_id, changed_at) VALUES (?, ?)",
+                        clientId, now);
+            }
+            log.debug("Recorded change of client {}", clientId);
+        } catch (final DuplicateKeyException e) {
+            log.debug("Change of client {} was recorded concurrently", clientId);
+        } catch (final DataAccessException e) {
+            log.warn("Could not record change of client {}; other nodes may serve it for up to {} ms",
+                    clientId, cacheTimeToLive, e);
+        }
+    }
+
+    /**
+     * Pull the changes recorded since the last pull and evict the clients they name.
+     * If the changes cannot be pulled, every client is evicted, since none can be
+     * known to be current.
+     */
+    public void synchronize() {
+        final long since = Math.max(0, watermark - syncOverlap);
+        final long[] latest = {watermark};
+        final int[] count = {0};
+        try {
+            jdbcTemplate.query("SELECT client_id, changed_at FROM client_change WHERE changed_at > ?",
+                    new RowCallbackHandler() {
+                        @Override
+                        public void processRow(final ResultSet rs) throws SQLException {
+                            cache.invalidate(rs.getString(1));
+                            latest[0] = Math.max(latest[0], rs.getTimestamp(2).getTime());
+                            count[0]++;
+                        }
+                    }, new Timestamp(since));
+            watermark = latest[0];
+        } catch (final DataAccessException e) {
+            log.warn("Could not pull client changes from the database; evicting all cached clients", e);
+            cache.invalidateAll();
+        }
+
+        if (log.isDebugEnabled()) {
+            final CacheStats stats = cache.stats();
+            log.debug("Pulled {} client change(s); {} cached client(s), {} hit(s), {} miss(es)",
+                    count[0], cache.size(), stats.hitCount(), stats.missCount());
+        }
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @return the stats
+     */
+    public CacheStats getCacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Sets how long clients are cached.
+     *
+     * @param ttl the time to live in milliseconds
+     */
+    @Value("%{oidc.client.cache.ttl:600000}")
+    public void setCacheTimeToLive(final long ttl) {
+        this.cacheTimeToLive = ttl;
+    }
+
+    /**
+     * Sets the maximum number of cached clients.
+     *
+     * @param size the size
+     */
+    @Value("%{oidc.client.cache.maxSize:1000}")
+    public void setCacheMaximumSize(final long size) {
+        this.cacheMaximumSize = size;
+    }
+
+    /**
+     * Sets the overlap applied to each pull.
+     *
+     * @param overlap the overlap
+     */
+    @Value("%{oidc.client.cache.syncOverlap:60000}")
+    public void setSyncOverlap(final long overlap) {
+        this.syncOverlap = overlap;
+    }
+}
@@ -1,43 +1,406 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
 package net.shibboleth.idp.oidc.client;
 
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.repository.OAuth2ClientRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-
+/**
+ * Imports the clients defined in the application context into the client repository on startup.
+ *
+ * <p>In the default {@link Mode#FULL} mode every defined client is saved, each in its own
+ * transaction. In {@link Mode#DIFF} mode every definition is fingerprinted and compared
+ * with the fingerprint of the client stored under the same id, so that a stored client
+ * changed by any other means is put back as well; only clients that differ from their
+ * definition, or that are missing from the repository, are saved.
+ * Those are saved in batches, one transaction per batch, optionally with several batches
+ * in parallel. Either way a summary of the counts and the elapsed time is logged.</p>
+ */
 public class ShibbolethClientRepositoryBootstrapper {
+    /**
+     * The Log.
+     */
     private final Logger log = LoggerFactory.getLogger(ShibbolethClientRepositoryBootstrapper.class);
-    
+
+    /**
+     * The properties assigned by the repository rather than by the definition.
+     */
+    private static final Set<String> GENERATED_PROPERTIES = ImmutableSet.of("id", "createdAt");
+
+    /**
+     * How defined clients are imported.
+     */
+    public enum Mode {
+        /** Save every defined client. */
+        FULL,
+        /** Save only the defined clients whose definition changed. */
+        DIFF
+    }
+
+    /**
+     * The clients defined in the application context.
+     */
     private final Set<ClientDetailsEntity> definedClients;
 
+    /**
+     * The Client repository.
+     */
     @Autowired
     private OAuth2ClientRepository clientRepository;
-    
+
+    /**
+     * The Client service, whose caches are told of saved clients.
+     */
+    @Autowired(required = false)
+    private CachingClientDetailsEntityService clientService;
+
+    /**
+     * The Mode.
+     */
+    private Mode mode = Mode.FULL;
+
+    /**
+     * The number of clients saved per transaction in diff mode.
+     */
+    private int batchSize = 100;
+
+    /**
+     * The number of batches saved in parallel in diff mode.
+     */
+    private int parallelism = 1;
+
+    /**
+     * The Transaction template.
+     */
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Instantiates a new Shibboleth client repository bootstrapper.
+     *
+     * @param definedClients the defined clients
+     */
     public ShibbolethClientRepositoryBootstrapper(final Set<ClientDetailsEntity> definedClients) {
         this.definedClients = definedClients;
     }
 
+    /**
+     * Import the defined clients into the repository.
+     */
     @PostConstruct
     public void bootstrap() {
-        
+
         if (definedClients == null || definedClients.isEmpty()) {
             log.info("No OIDC clients are defined in the application context configuration.");
             return;
         }
 
+        final Stopwatch stopwatch = Stopwatch.createStarted();
+        if (mode == Mode.DIFF) {
+            bootstrapChangedClients(stopwatch);
+            return;
+        }
+
+        int failed = 0;
         for (final ClientDetailsEntity client : definedClients) {
             try {
                 log.debug("Attempting to save/update client id [{}] in the repository with redirectUris [{}]", client.getClientId(), client.getRedirectUris());
                 this.clientRepository.saveClient(client);
+                if (this.clientService != null) {
+                    this.clientService.clientChanged(client.getClientId());
+                }
                 log.info("Updated client id [{}] in the repository successfully", client.getClientId());
             } catch (final Exception e) {
+                failed++;
                 log.warn("Could not update client id [{}] in the repository", client.getClientId(), e);
             }
         }
+        log.info("Bootstrapped {} defined client(s): {} saved, {} failed in {} ms", definedClients.size(),
+                definedClients.size() - failed, failed, stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Save the defined clients that differ from the client stored under the same id,
+     * or that are missing from the repository.
+     *
+     * @param stopwatch the stopwatch started at the beginning of the bootstrap
+     */
+    private void bootstrapChangedClients(final Stopwatch stopwatch) {
+        final Map<String, String> stored = new HashMap<>();
+        try {
+            stored.putAll(fingerprintStoredClients());
+        } catch (final Exception e) {
+            log.warn("Could not read the stored clients; saving every defined client", e);
+        }
+
+        final List<ClientDetailsEntity> changed = new ArrayList<>();
+        for (final ClientDetailsEntity client : definedClients) {
+            if (fingerprint(client).equals(stored.get(client.getClientId()))) {
+                log.trace("Client id [{}] is unchanged", client.getClientId());
+            } else {
+                changed.add(client);
+            }
+        }
+
+        final AtomicInteger failed = new AtomicInteger();
+        final List<Runnable> batches = new ArrayList<>();
+        for (final List<ClientDetailsEntity> batch : Iterables.partition(changed, batchSize)) {
+            batches.add(new Runnable() {
+                @Override
+                public void run() {
+                    saveBatch(batch, failed);
+                }
+            });
+        }
+        runBatches(batches);
+
+        log.info("Bootstrapped {} defined client(s): {} unchanged, {} saved, {} failed in {} ms",
+                definedClients.size(), definedClients.size() - changed.size(), changed.size() - failed.get(),
+                failed.get(), stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Fingerprint the stored clients of the defined client ids. The clients are read
+     * in one transaction so that their collections can be loaded.
+     *
+     * @return the fingerprints of the stored clients, keyed by client id
+     */
+    private Map<String, String> fingerprintStoredClients() {
+        return transactionTemplate.execute(new TransactionCallback<Map<String, String>>() {
+            @Override
+            public Map<String, String> doInTransaction(final TransactionStatus status) {
+                status.setRollbackOnly();
+                final Map<String, String> fingerprints = new HashMap<>();
+                for (final ClientDetailsEntity client : definedClients) {
+                    final ClientDetailsEntity stored = clientRepository.getClientByClientId(client.getClientId());
+                    if (stored != null) {
+                        fingerprints.put(client.getClientId(), fingerprint(stored));
+                    }
+                }
+                return fingerprints;
+            }
+        });
+    }
+
+    /**
+     * Save a batch of clients in one transaction. If the transaction fails, the
+     * clients of the batch are retried one by one so that a single bad definition
+     * does not hold up the others.
+     *
+     * @param batch  the clients
+     * @param failed the count of clients that could not be saved
+     */
+    private void saveBatch(final List<ClientDetailsEntity> batch, final AtomicInteger failed) {
+        try {
+            saveInTransaction(batch);
+            log.debug("Saved a batch of {} changed client(s)", batch.size());
+        } catch (final Exception e) {
+            log.warn("Could not save a batch of {} client(s); saving them one by one", batch.size(), e);
+            for (final ClientDetailsEntity client : batch) {
+                try {
+                    saveInTransaction(Collections.singletonList(client));
+                } catch (final Exception ex) {
+                    failed.incrementAndGet();
+                    log.warn("Could not update client id [{}] in the repository", client.getClientId(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save clients in one transaction.
+     *
+     * @param clients the clients
+     */
+    private void saveInTransaction(final List<ClientDetailsEntity> clients) {
+        transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                for (final ClientDetailsEntity client : clients) {
+                    log.debug("Saving changed client id [{}] in the repository", client.getClientId());
+                    clientRepository.saveClient(client);
+                }
+            }
+        });
+        if (clientService != null) {
+            for (final ClientDetailsEntity client : clients) {
+                clientService.clientChanged(client.getClientId());
+            }
+        }
+    }
+
+    /**
+     * Run the batches, in parallel if configured to.
+     *
+     * @param batches the batches
+     */
+    private void runBatches(final List<Runnable> batches) {
+        if (parallelism <= 1 || batches.size() <= 1) {
+            for (final Runnable batch : batches) {
+                batch.run();
+            }
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, batches.size()));
+        try {
+            final List<Future<?>> futures = new ArrayList<>(batches.size());
+            for (final Runnable batch : batches) {
+                futures.add(executor.submit(batch));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while saving changed clients");
+        } catch (final ExecutionException e) {
+            log.warn("Could not save a batch of changed clients", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fingerprint a client: a SHA-256 over every bean property but those the
+     * repository assigns, in name order, with the elements of collections and maps in sorted order so
+     * that the fingerprint does not depend on their iteration order.
+     *
+     * @param client the client
+     * @return the fingerprint, hex encoded
+     */
+    private static String fingerprint(final ClientDetailsEntity client) {
+        final Map<String, String> properties = new TreeMap<>();
+        try {
+            for (final PropertyDescriptor property
+                    : Introspector.getBeanInfo(ClientDetailsEntity.class, Object.class).getPropertyDescriptors()) {
+                if (property.getReadMethod() != null && !GENERATED_PROPERTIES.contains(property.getName())) {
+                    properties.put(property.getName(), canonical(property.getReadMethod().invoke(client)));
+                }
+            }
+        } catch (final IntrospectionException | ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not fingerprint client " + client.getClientId(), e);
+        }
+        final Hasher hasher = Hashing.sha256().newHasher();
+        for (final Map.Entry<String, String> property : properties.entrySet()) {
+            hasher.putString(property.getKey(), StandardCharsets.UTF_8).putByte((byte) 0)
+                  .putString(property.getValue(), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Gets the canonical string form of a property value.
+     *
+     * @param value the value
+     * @return the canonical form
+     */
+    private static String canonical(final Object value) {
+        if (value instanceof Collection) {
+            final Set<String> elements = new TreeSet<>();
+            for (final Object element : (Collection<?>) value) {
+                elements.add(canonical(element));
+            }
+            return elements.toString();
+        }
+        if (value instanceof Map) {
+            final Map<String, String> entries = new TreeMap<>();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                entries.put(canonical(entry.getKey()), canonical(entry.getValue()));
+            }
+            return entries.toString();
+        }
+        if (value instanceof Date) {
+            return Long.toString(((Date) value).getTime());
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Sets transaction manager.
+     *
+     * @param transactionManager the transaction manager
+     */
+    @Resource(name = "transactionManager")
+    public void setTransactionManager(final PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Sets how defined clients are imported.
+     *
+     * @param bootstrapMode the mode, full or diff
+     */
+    public void setMode(final String bootstrapMode) {
+        this.mode = Mode.valueOf(bootstrapMode.trim().toUpperCase());
+    }
+
+    /**
+     * Sets the number of clients saved per transaction in diff mode.
+     *
+     * @param size the size
+     */
+    public void setBatchSize(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.batchSize = size;
+    }
+
+    /**
+     * Sets the number of batches saved in parallel in diff mode.
+     *
+     * @param threads the number of threads
+     */
+    public void setParallelism(final int threads) {
+        this.parallelism = threads;
     }
 }
@@ -0,0 +1,647 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonPrimitive;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import org.mitre.openid.connect.model.Address;
+import org.mitre.openid.connect.model.DefaultAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps released attributes onto userinfo claims. The mappings are compiled
+ * once into claim setters looked up by attribute id, so mapping an attribute
+ * costs one map lookup and allocates nothing but the claim value itself.
+ *
+ * <p>Standard claims are produced by the attribute of the same id unless
+ * mapped otherwise. {@code address.*} claims fill the fields of the structured
+ * address claim. Any other mapped claim is a custom claim, released as an array
+ * when it is listed as multi-valued, to clients granted a scope that
+ * {@link ShibbolethScopeClaimTranslationService} maps it to.</p>
+ */
+@Component("claimMappingEngine")
+public class ClaimMappingEngine {
+    /**
+     * The constant LOG.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ClaimMappingEngine.class);
+
+    /**
+     * Prefix of the claims that fill the fields of the address claim.
+     */
+    private static final String ADDRESS_PREFIX = "address.";
+
+    /**
+     * Attribute ids keyed by the claim they produce, as configured.
+     */
+    private Map<String, String> claimAttributes = ImmutableMap.of();
+
+    /**
+     * Custom claims released as arrays.
+     */
+    private Set<String> multiValuedClaims = ImmutableSet.of();
+
+    /**
+     * The compiled setters keyed by attribute id.
+     */
+    private Map<String, ClaimSetter[]> setters = ImmutableMap.of();
+
+    /**
+     * The ids of the attributes each claim is produced from.
+     */
+    private Map<String, List<String>> attributeIds = ImmutableMap.of();
+
+    /**
+     * Compile the mappings.
+     */
+    @PostConstruct
+    public void initialize() {
+        final Map<String, String> mappings = new LinkedHashMap<>();
+        for (final StandardClaim claim : StandardClaim.values()) {
+            mappings.put(claim.getName(), claim.getName());
+        }
+        mappings.putAll(claimAttributes);
+
+        final Map<String, List<ClaimSetter>> byAttribute = new LinkedHashMap<>();
+        final Map<String, List<String>> byClaim = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> mapping : mappings.entrySet()) {
+            final String claim = mapping.getKey();
+            final String attributeId = mapping.getValue();
+            final ClaimSetter setter = compile(claim);
+
+            List<ClaimSetter> attributeSetters = byAttribute.get(attributeId);
+            if (attributeSetters == null) {
+                attributeSetters = new ArrayList<>();
+                byAttribute.put(attributeId, attributeSetters);
+            }
+            attributeSetters.add(setter);
+
+            final String releasedClaim = claim.startsWith(ADDRESS_PREFIX) ? StandardClaim.ADDRESS.getName() : claim;
+            List<String> claimAttributeIds = byClaim.get(releasedClaim);
+            if (claimAttributeIds == null) {
+                claimAttributeIds = new ArrayList<>();
+                byClaim.put(releasedClaim, claimAttributeIds);
+            }
+            if (!claimAttributeIds.contains(attributeId)) {
+                claimAttributeIds.add(attributeId);
+            }
+        }
+
+        final ImmutableMap.Builder<String, ClaimSetter[]> compiled = ImmutableMap.builder();
+        for (final Map.Entry<String, List<ClaimSetter>> entry : byAttribute.entrySet()) {
+            compiled.put(entry.getKey(), entry.getValue().toArray(new ClaimSetter[entry.getValue().size()]));
+        }
+        this.setters = compiled.build();
+
+        final ImmutableMap.Builder<String, List<String>> ids = ImmutableMap.builder();
+        for (final Map.Entry<String, List<String>> entry : byClaim.entrySet()) {
+            ids.put(entry.getKey(), ImmutableList.copyOf(entry.getValue()));
+        }
+        this.attributeIds = ids.build();
+        LOG.debug("Compiled claim mappings for attributes {}", setters.keySet());
+    }
+
+    /**
+     * Map the attributes onto the claims of the userinfo.
+     *
+     * @param userInfo   the user info
+     * @param attributes the attributes
+     */
+    public void map(final ShibbolethUserInfo userInfo, final Collection<IdPAttribute> attributes) {
+        for (final IdPAttribute attribute : attributes) {
+            final ClaimSetter[] attributeSetters = setters.get(attribute.getId());
+            if (attributeSetters == null) {
+                LOG.debug("No claim is mapped from attribute {}", attribute.getId());
+                continue;
+            }
+            for (final ClaimSetter setter : attributeSetters) {
+                setter.set(userInfo, attribute);
+            }
+        }
+    }
+
+    /**
+     * Gets the ids of the attributes a claim is produced from.
+     *
+     * @param claim the claim
+     * @return the attribute ids, empty if the claim is not mapped
+     */
+    public List<String> getAttributeIds(final String claim) {
+        final List<String> ids = attributeIds.get(claim);
+        return ids != null ? ids : ImmutableList.<String>of();
+    }
+
+    /**
+     * Sets the attributes that produce claims, as a comma separated list of
+     * claim:attributeId pairs.
+     *
+     * @param mappings the mappings
+     */
+    @Value("%{oidc.userinfo.claim.attributes:}")
+    public void setClaimAttributes(final String mappings) {
+        if (Strings.isNullOrEmpty(mappings) || mappings.trim().isEmpty()) {
+            this.claimAttributes = ImmutableMap.of();
+        } else {
+            this.claimAttributes = ImmutableMap.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+                .withKeyValueSeparator(Splitter.on(':').trimResults()).split(mappings));
+        }
+    }
+
+    /**
+     * Sets the custom claims released as arrays, as a comma separated list.
+     *
+     * @param claims the claims
+     */
+    @Value("%{oidc.userinfo.claim.multiValued:}")
+    public void setMultiValuedClaims(final String claims) {
+        this.multiValuedClaims = ImmutableSet.copyOf(
+            Splitter.on(',').trimResults().omitEmptyStrings().split(Strings.nullToEmpty(claims)));
+    }
+
+    /**
+     * Compile the setter of a claim.
+     *
+     * @param claim the claim
+     * @return the setter
+     */
+    private ClaimSetter compile(final String claim) {
+        final StandardClaim standard = StandardClaim.forName(claim);
+        if (standard != null) {
+            if (multiValuedClaims.contains(claim)) {
+                LOG.warn("Standard claim {} is single-valued; only the first value is released", claim);
+            }
+            return new StandardClaimSetter(standard);
+        }
+        if (claim.startsWith(ADDRESS_PREFIX)) {
+            final AddressField field = AddressField.forName(claim.substring(ADDRESS_PREFIX.length()));
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown address claim " + claim);
+            }
+            return new AddressFieldSetter(field);
+        }
+        return new CustomClaimSetter(claim, multiValuedClaims.contains(claim));
+    }
+
+    /**
+     * Gets the first value of the attribute as a string.
+     *
+     * @param attribute the attribute
+     * @return the value, or null if the attribute has no value
+     */
+    private static String getFirstValue(final IdPAttribute attribute) {
+        final List<IdPAttributeValue<?>> values = attribute.getValues();
+        if (values.isEmpty()) {
+            return null;
+        }
+        final Object value = values.get(0).getValue();
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Gets the address of the userinfo, creating it on first use.
+     *
+     * @param userInfo the user info
+     * @return the address
+     */
+    private static DefaultAddress getAddress(final ShibbolethUserInfo userInfo) {
+        final Address address = userInfo.getAddress();
+        if (address instanceof DefaultAddress) {
+            return (DefaultAddress) address;
+        }
+        final DefaultAddress created = new DefaultAddress();
+        userInfo.setAddress(created);
+        return created;
+    }
+
+    /**
+     * Sets one claim from an attribute.
+     */
+    private interface ClaimSetter {
+        /**
+         * Set the claim.
+         *
+         * @param userInfo  the user info
+         * @param attribute the attribute
+         */
+        void set(ShibbolethUserInfo userInfo, IdPAttribute attribute);
+    }
+
+    /**
+     * Setter of a standard claim.
+     */
+    private static final class StandardClaimSetter implements ClaimSetter {
+        /**
+         * The Claim.
+         */
+        private final StandardClaim claim;
+
+        /**
+         * Instantiates a new Standard claim setter.
+         *
+         * @param c the claim
+         */
+        StandardClaimSetter(final StandardClaim c) {
+            this.claim = c;
+        }
+
+        @Override
+        public void set(final ShibbolethUserInfo userInfo, final IdPAttribute attribute) {
+            claim.apply(userInfo, getFirstValue(attribute));
+        }
+    }
+
+    /**
+     * Setter of a field of the address claim.
+     */
+    private static final class AddressFieldSetter implements ClaimSetter {
+        /**
+         * The Field.
+         */
+        private final AddressField field;
+
+        /**
+         * Instantiates a new Address field setter.
+         *
+         * @param f the field
+         */
+        AddressFieldSetter(final AddressField f) {
+            this.field = f;
+        }
+
+        @Override
+        public void set(final ShibbolethUserInfo userInfo, final IdPAttribute attribute) {
+            field.apply(getAddress(userInfo), getFirstValue(attribute));
+        }
+    }
+
+    /**
+     * Setter of a custom claim.
+     */
+    private static final class CustomClaimSetter implements ClaimSetter {
+        /**
+         * The Claim.
+         */
+        private final String claim;
+
+        /**
+         * Whether all values are released as an array.
+         */
+        private final boolean multiValued;
+
+        /**
+         * Instantiates a new Custom claim setter.
+         *
+         * @param c     the claim
+         * @param multi whether the claim is multi-valued
+         */
+        CustomClaimSetter(final String c, final boolean multi) {
+            this.claim = c;
+            this.multiValued = multi;
+        }
+
+        @Override
+        public void set(final ShibbolethUserInfo userInfo, final IdPAttribute attribute) {
+            if (multiValued) {
+                final JsonArray array = new JsonArray();
+                for (final IdPAttributeValue<?> value : attribute.getValues()) {
+                    array.add(toJson(value.getValue()));
+                }
+                userInfo.setCustomClaim(claim, array);
+            } else {
+                final List<IdPAttributeValue<?>> values = attribute.getValues();
+                userInfo.setCustomClaim(claim, values.isEmpty() ? JsonNull.INSTANCE : toJson(values.get(0).getValue()));
+            }
+        }
+
+        /**
+         * Convert a value to json.
+         *
+         * @param value the value
+         * @return the json element
+         */
+        private static JsonElement toJson(final Object value) {
+            if (value == null) {
+                return JsonNull.INSTANCE;
+            }
+            if (value instanceof Boolean) {
+                return new JsonPrimitive((Boolean) value);
+            }
+            if (value instanceof Number) {
+                return new JsonPrimitive((Number) value);
+            }
+            return new JsonPrimitive(value.toString());
+        }
+    }
+
+    /**
+     * The standard claims of the userinfo.
+     */
+    private enum StandardClaim {
+        /** Subject. */
+        SUB("sub") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                LOG.debug("Overriding existing sub value {} to {}", userInfo.getSub(), value);
+                userInfo.setSub(value);
+            }
+        },
+        /** Name. */
+        NAME("name") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setName(value);
+            }
+        },
+        /** Given name. */
+        GIVEN_NAME("given_name") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setGivenName(value);
+            }
+        },
+        /** Family name. */
+        FAMILY_NAME("family_name") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setFamilyName(value);
+            }
+        },
+        /** Middle name. */
+        MIDDLE_NAME("middle_name") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setMiddleName(value);
+            }
+        },
+        /** Nickname. */
+        NICKNAME("nickname") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setNickname(value);
+            }
+        },
+        /** Preferred username. */
+        PREFERRED_USERNAME("preferred_username") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setPreferredUsername(value);
+            }
+        },
+        /** Profile. */
+        PROFILE("profile") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setProfile(value);
+            }
+        },
+        /** Picture. */
+        PICTURE("picture") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setPicture(value);
+            }
+        },
+        /** Website. */
+        WEBSITE("website") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setWebsite(value);
+            }
+        },
+        /** Email. */
+        EMAIL("email") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setEmail(value);
+            }
+        },
+        /** Email verified. */
+        EMAIL_VERIFIED("email_verified") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setEmailVerified(Boolean.valueOf(value));
+            }
+        },
+        /** Gender. */
+        GENDER("gender") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setGender(value);
+            }
+        },
+        /** Birthdate. */
+        BIRTHDATE("birthdate") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setBirthdate(value);
+            }
+        },
+        /** Zoneinfo. */
+        ZONEINFO("zoneinfo") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setZoneinfo(value);
+            }
+        },
+        /** Locale. */
+        LOCALE("locale") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setLocale(value);
+            }
+        },
+        /** Phone number. */
+        PHONE_NUMBER("phone_number") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setPhoneNumber(value);
+            }
+        },
+        /** Phone number verified. */
+        PHONE_NUMBER_VERIFIED("phone_number_verified") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setPhoneNumberVerified(Boolean.valueOf(value));
+            }
+        },
+        /** Updated at. */
+        UPDATED_AT("updated_at") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                userInfo.setUpdatedTime(value);
+            }
+        },
+        /** Formatted address. */
+        ADDRESS("address") {
+            @Override
+            void apply(final ShibbolethUserInfo userInfo, final String value) {
+                getAddress(userInfo).setFormatted(value);
+            }
+        };
+
+        /**
+         * The Name.
+         */
+        private final String name;
+
+        /**
+         * Instantiates a new Standard claim.
+         *
+         * @param n the name
+         */
+        StandardClaim(final String n) {
+            this.name = n;
+        }
+
+        /**
+         * Gets name.
+         *
+         * @return the name
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Set the claim.
+         *
+         * @param userInfo the user info
+         * @param value    the value
+         */
+        abstract void apply(ShibbolethUserInfo userInfo, String value);
+
+        /**
+         * Find the standard claim of the given name.
+         *
+         * @param name the name
+         * @return the standard claim, or null
+         */
+        static StandardClaim forName(final String name) {
+            for (final StandardClaim claim : values()) {
+                if (claim.name.equals(name)) {
+                    return claim;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The fields of the address claim.
+     */
+    private enum AddressField {
+        /** Formatted. */
+        FORMATTED("formatted") {
+            @Override
+            void apply(final DefaultAddress address, final String value) {
+                address.setFormatted(value);
+            }
+        },
+        /** Street address. */
+        STREET_ADDRESS("street_address") {
+            @Override
+            void apply(final DefaultAddress address, final String value) {
+                address.setStreetAddress(value);
+            }
+        },
+        /** Locality. */
+        LOCALITY("locality") {
+            @Override
+            void apply(final DefaultAddress address, final String value) {
+                address.setLocality(value);
+            }
+        },
+        /** Region. */
+        REGION("region") {
+            @Override
+            void apply(final DefaultAddress address, final String value) {
+                address.setRegion(value);
+            }
+        },
+        /** Postal code. */
+        POSTAL_CODE("postal_code") {
+            @Override
+            void apply(final DefaultAddress address, final String value) {
+                address.setPostalCode(value);
+            }
+        },
+        /** Country. */
+        COUNTRY("country") {
+            @Override
+            void apply(final DefaultAddress address, final String value) {
+                address.setCountry(value);
+            }
+        };
+
+        /**
+         * The Name.
+         */
+        private final String name;
+
+        /**
+         * Instantiates a new Address field.
+         *
+         * @param n the name
+         */
+        AddressField(final String n) {
+            this.name = n;
+        }
+
+        /**
+         * Set the field.
+         *
+         * @param address the address
+         * @param value   the value
+         */
+        abstract void apply(DefaultAddress address, String value);
+
+        /**
+         * Find the address field of the given name.
+         *
+         * @param name the name
+         * @return the field, or null
+         */
+        static AddressField forName(final String name) {
+            for (final AddressField field : values()) {
+                if (field.name.equals(name)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+    }
+}
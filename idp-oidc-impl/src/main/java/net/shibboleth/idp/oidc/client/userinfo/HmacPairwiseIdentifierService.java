@@ -0,0 +1,228 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.BaseEncoding;
+import net.shibboleth.idp.oidc.OIDCException;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.service.PairwiseIdentiferService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Set;
+
+/**
+ * Pairwise identifier service that derives the pairwise subject as an HMAC-SHA256
+ * of the sector identifier and the local subject, keyed with a configured salt.
+ * The same inputs always produce the same identifier, so nothing is stored or
+ * looked up. Sector identifiers are determined the same way as
+ * {@link org.mitre.openid.connect.service.impl.UUIDPairwiseIdentiferService} does.
+ *
+ * <p>Sectors whose clients already received stored identifiers can be listed as
+ * legacy sectors; those keep being served by the legacy service until migrated.
+ * {@link PairwiseIdentifierMigrationTool} reports which sectors those are.</p>
+ */
+public class HmacPairwiseIdentifierService implements PairwiseIdentiferService {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(HmacPairwiseIdentifierService.class);
+
+    /**
+     * The HMAC algorithm.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * The encoding of identifiers.
+     */
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+    /**
+     * The per-thread MACs keyed with the salt.
+     */
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (final GeneralSecurityException e) {
+                throw new OIDCException("Could not initialize " + ALGORITHM, e);
+            }
+        }
+    };
+
+    /**
+     * The Key.
+     */
+    private SecretKeySpec key;
+
+    /**
+     * Sectors that keep their stored identifiers.
+     */
+    private Set<String> legacySectors = ImmutableSet.of();
+
+    /**
+     * The service of legacy sectors.
+     */
+    private PairwiseIdentiferService legacyService;
+
+    /**
+     * The maximum number of cached identifiers; zero disables the cache.
+     */
+    private long cacheMaximumSize;
+
+    /**
+     * Identifiers of hot principals keyed by sector and subject.
+     */
+    private Cache<String, String> cache;
+
+    /**
+     * Check the configuration and build the cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (key == null) {
+            throw new OIDCException("No salt is configured for pairwise identifiers");
+        }
+        if (!legacySectors.isEmpty() && legacyService == null) {
+            throw new OIDCException("Legacy pairwise sectors are configured without a legacy service");
+        }
+        if (cacheMaximumSize > 0) {
+            cache = CacheBuilder.newBuilder().maximumSize(cacheMaximumSize).build();
+        }
+    }
+
+    @Override
+    public String getIdentifier(final UserInfo userInfo, final ClientDetailsEntity client) {
+        final String sectorIdentifier = getSectorIdentifier(client);
+        if (sectorIdentifier == null) {
+            log.warn("Could not determine the sector identifier of client {}", client.getClientId());
+            return null;
+        }
+        if (legacySectors.contains(sectorIdentifier)) {
+            log.debug("Sector {} keeps its stored pairwise identifiers", sectorIdentifier);
+            return legacyService.getIdentifier(userInfo, client);
+        }
+        return getIdentifier(sectorIdentifier, userInfo.getSub());
+    }
+
+    /**
+     * Derive the pairwise identifier of a subject in a sector.
+     *
+     * @param sectorIdentifier the sector identifier
+     * @param sub              the local subject
+     * @return the pairwise identifier
+     */
+    public String getIdentifier(final String sectorIdentifier, final String sub) {
+        if (cache == null) {
+            return derive(sectorIdentifier, sub);
+        }
+        final String cacheKey = sectorIdentifier + '|' + sub;
+        String identifier = cache.getIfPresent(cacheKey);
+        if (identifier == null) {
+            identifier = derive(sectorIdentifier, sub);
+            cache.put(cacheKey, identifier);
+        }
+        return identifier;
+    }
+
+    /**
+     * Compute the HMAC of the sector identifier and the subject. The sector identifier
+     * is a host name, so the separator cannot occur in it.
+     *
+     * @param sectorIdentifier the sector identifier
+     * @param sub              the local subject
+     * @return the pairwise identifier
+     */
+    private String derive(final String sectorIdentifier, final String sub) {
+        final Mac mac = macs.get();
+        mac.update(sectorIdentifier.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) '|');
+        return ENCODING.encode(mac.doFinal(sub.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Gets the sector identifier of the client: the host of its sector identifier uri,
+     * or else the host of its only redirect uri.
+     *
+     * @param client the client
+     * @return the sector identifier
+     */
+    private String getSectorIdentifier(final ClientDetailsEntity client) {
+        if (!Strings.isNullOrEmpty(client.getSectorIdentifierUri())) {
+            return UriComponentsBuilder.fromUriString(client.getSectorIdentifierUri()).build().getHost();
+        }
+        return UriComponentsBuilder.fromUriString(Iterables.getOnlyElement(client.getRedirectUris()))
+            .build().getHost();
+    }
+
+    /**
+     * Sets the salt keying the HMAC.
+     *
+     * @param salt the salt
+     */
+    public void setSalt(final String salt) {
+        if (Strings.isNullOrEmpty(salt) || salt.length() < 32) {
+            throw new OIDCException("The pairwise identifier salt must be at least 32 characters long");
+        }
+        this.key = new SecretKeySpec(salt.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    /**
+     * Sets the sectors that keep their stored identifiers, as a comma separated list.
+     *
+     * @param sectors the sectors
+     */
+    public void setLegacySectors(final String sectors) {
+        this.legacySectors = ImmutableSet.copyOf(
+            Splitter.on(',').trimResults().omitEmptyStrings().split(Strings.nullToEmpty(sectors)));
+    }
+
+    /**
+     * Sets the service of legacy sectors.
+     *
+     * @param service the service
+     */
+    public void setLegacyService(final PairwiseIdentiferService service) {
+        this.legacyService = service;
+    }
+
+    /**
+     * Sets the maximum number of cached identifiers.
+     *
+     * @param size the size
+     */
+    public void setCacheMaximumSize(final long size) {
+        this.cacheMaximumSize = size;
+    }
+}
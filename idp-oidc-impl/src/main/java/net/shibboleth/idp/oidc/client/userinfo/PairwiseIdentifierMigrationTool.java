@@ -0,0 +1,188 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+
+import javax.annotation.Nonnull;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Checks, once, whether the identifiers stored in the {@code pairwise_identifier} table
+ * match those {@link HmacPairwiseIdentifierService} derives with a given salt. It reports
+ * the matches and mismatches per sector, and lists the sectors that must stay legacy
+ * sectors to keep their subjects stable. It is intended to be invoked from the command
+ * line, and exits with status 1 when any identifier does not match.
+ */
+public final class PairwiseIdentifierMigrationTool {
+    /**
+     * The query of the stored identifiers.
+     */
+    private static final String QUERY = "SELECT sub, sector_identifier, identifier FROM pairwise_identifier";
+
+    /**
+     * The command-line arguments.
+     */
+    @Nonnull
+    private final CommandLineArgs args;
+
+    /**
+     * Instantiates a new instance. Initializes the command line args.
+     */
+    public PairwiseIdentifierMigrationTool() {
+        this.args = new CommandLineArgs();
+    }
+
+    /**
+     * Compare the stored identifiers with the derived ones.
+     *
+     * @return true if every stored identifier matches
+     * @throws Exception if the table cannot be read
+     */
+    public boolean check() throws Exception {
+        if (!Strings.isNullOrEmpty(args.driver)) {
+            Class.forName(args.driver);
+        }
+        final HmacPairwiseIdentifierService service = new HmacPairwiseIdentifierService();
+        service.setSalt(args.salt);
+        service.initialize();
+
+        final Map<String, int[]> sectors = new TreeMap<>();
+        try (Connection connection = DriverManager.getConnection(args.url, args.user, args.password);
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(QUERY)) {
+            while (rs.next()) {
+                final String sub = rs.getString(1);
+                final String sector = rs.getString(2);
+                final String identifier = rs.getString(3);
+
+                int[] counts = sectors.get(sector);
+                if (counts == null) {
+                    counts = new int[2];
+                    sectors.put(sector, counts);
+                }
+                if (service.getIdentifier(sector, sub).equals(identifier)) {
+                    counts[0]++;
+                } else {
+                    counts[1]++;
+                }
+            }
+        }
+        return report(sectors);
+    }
+
+    /**
+     * Print the counts per sector and the sectors that must stay legacy sectors.
+     *
+     * @param sectors the match and mismatch counts per sector
+     * @return true if there are no mismatches
+     */
+    private boolean report(final Map<String, int[]> sectors) {
+        final Set<String> legacy = new TreeSet<>();
+        for (final Map.Entry<String, int[]> sector : sectors.entrySet()) {
+            final int[] counts = sector.getValue();
+            System.out.println(String.format("%s: %d matching, %d mismatching",
+                sector.getKey(), counts[0], counts[1]));
+            if (counts[1] > 0) {
+                legacy.add(sector.getKey());
+            }
+        }
+        if (legacy.isEmpty()) {
+            System.out.println("All stored pairwise identifiers match");
+            return true;
+        }
+        System.out.println("oidc.pairwise.legacySectors=" + Joiner.on(',').join(legacy));
+        return false;
+    }
+
+    /**
+     * The command line args.
+     */
+    private static class CommandLineArgs {
+        /**
+         * The Help.
+         */
+        @Parameter(names = {"--help"}, description = "Display program usage", help = true)
+        private boolean help;
+
+        /**
+         * The Url.
+         */
+        @Parameter(names = {"--url"}, required = true, description = "JDBC url of the OIDC database")
+        private String url;
+
+        /**
+         * The User.
+         */
+        @Parameter(names = {"--user"}, description = "Database user")
+        private String user;
+
+        /**
+         * The Password.
+         */
+        @Parameter(names = {"--password"}, description = "Database password")
+        private String password;
+
+        /**
+         * The Driver.
+         */
+        @Parameter(names = {"--driver"}, description = "JDBC driver class")
+        private String driver;
+
+        /**
+         * The Salt.
+         */
+        @Parameter(names = {"--salt"}, required = true,
+                description = "Salt of the pairwise identifiers, as in oidc.pairwise.salt")
+        private String salt;
+    }
+
+    /**
+     * Main void.
+     *
+     * @param args the args
+     */
+    public static void main(final String[] args) {
+        final PairwiseIdentifierMigrationTool tool = new PairwiseIdentifierMigrationTool();
+
+        final JCommander jc = new JCommander(tool.args, args);
+        if (tool.args.help) {
+            jc.setProgramName("PairwiseIdentifierMigrationTool");
+            jc.usage();
+            return;
+        }
+
+        try {
+            if (!tool.check()) {
+                System.exit(1);
+            }
+        } catch (final Exception e) {
+            System.err.println("Could not check pairwise identifiers: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+}
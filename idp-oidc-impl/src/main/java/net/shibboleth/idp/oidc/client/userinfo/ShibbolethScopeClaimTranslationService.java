@@ -0,0 +1,90 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import org.mitre.openid.connect.service.impl.DefaultScopeClaimTranslationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Translates scopes into the claims they release, adding the custom claims
+ * configured for each scope to the standard claims known to
+ * {@link DefaultScopeClaimTranslationService}. Custom claims, such as those mapped
+ * by the {@link ClaimMappingEngine}, are otherwise never released, since no scope
+ * covers them.
+ */
+@Component("shibbolethScopeClaimTranslator")
+@Primary
+public class ShibbolethScopeClaimTranslationService extends DefaultScopeClaimTranslationService {
+    /**
+     * The constant LOG.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(ShibbolethScopeClaimTranslationService.class);
+
+    /**
+     * Custom claims keyed by the scope that releases them.
+     */
+    private SetMultimap<String, String> customClaims = ImmutableSetMultimap.of();
+
+    @Override
+    public Set<String> getClaimsForScope(final String scope) {
+        final Set<String> claims = new HashSet<>(super.getClaimsForScope(scope));
+        claims.addAll(customClaims.get(scope));
+        return claims;
+    }
+
+    @Override
+    public Set<String> getClaimsForScopeSet(final Set<String> scopes) {
+        final Set<String> claims = new HashSet<>();
+        for (final String scope : scopes) {
+            claims.addAll(getClaimsForScope(scope));
+        }
+        return claims;
+    }
+
+    /**
+     * Sets the scopes that release custom claims, as a comma separated list of
+     * claim:scope pairs. A claim may be listed once for each scope that releases it.
+     *
+     * @param mappings the mappings
+     */
+    @Value("%{oidc.userinfo.claim.scopes:}")
+    public void setCustomClaimScopes(final String mappings) {
+        final ImmutableSetMultimap.Builder<String, String> claims = ImmutableSetMultimap.builder();
+        for (final String mapping : Splitter.on(',').trimResults().omitEmptyStrings()
+            .split(Strings.nullToEmpty(mappings))) {
+            final List<String> pair = Splitter.on(':').trimResults().splitToList(mapping);
+            if (pair.size() != 2 || pair.get(0).isEmpty() || pair.get(1).isEmpty()) {
+                throw new IllegalArgumentException("Invalid claim scope mapping " + mapping);
+            }
+            claims.put(pair.get(1), pair.get(0));
+        }
+        this.customClaims = claims.build();
+        LOG.debug("Custom claims released by scope are {}", customClaims);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.mitre.openid.connect.model.Address;
+import org.mitre.openid.connect.model.DefaultUserInfo;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Userinfo that carries, next to the standard claims, custom claims
+ * which may be multi-valued. Claims can be read one at a time and written
+ * straight to a stream, without building a JSON tree first.
+ */
+public class ShibbolethUserInfo extends DefaultUserInfo {
+    private static final long serialVersionUID = 6078310513142743467L;
+
+    /**
+     * Writes custom claim values as they are, nulls and markup included.
+     */
+    private static final Gson GSON = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+
+    /**
+     * The Custom claims.
+     */
+    private transient Map<String, JsonElement> customClaims;
+
+    /**
+     * Sets a custom claim.
+     *
+     * @param name  the name
+     * @param value the value
+     */
+    public void setCustomClaim(final String name, final JsonElement value) {
+        if (customClaims == null) {
+            customClaims = new LinkedHashMap<>();
+        }
+        customClaims.put(name, value);
+    }
+
+    /**
+     * Gets custom claims.
+     *
+     * @return the custom claims
+     */
+    public Map<String, JsonElement> getCustomClaims() {
+        if (customClaims == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(customClaims);
+    }
+
+    /**
+     * Write a JSON element, reporting a failure of the stream as such.
+     *
+     * @param out   the writer
+     * @param value the value
+     * @throws IOException if the value cannot be written
+     */
+    private static void writeElement(final JsonWriter out, final JsonElement value) throws IOException {
+        try {
+            GSON.toJson(value, out);
+        } catch (final JsonIOException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the value of a claim as a string, the way it would appear as a JSON primitive.
+     *
+     * @param claim the claim
+     * @return the value, or null if the claim is not set or is not a primitive
+     */
+    public String getClaimValue(final String claim) {
+        switch (claim) {
+            case "sub":
+                return getSub();
+            case "name":
+                return getName();
+            case "preferred_username":
+                return getPreferredUsername();
+            case "given_name":
+                return getGivenName();
+            case "family_name":
+                return getFamilyName();
+            case "middle_name":
+                return getMiddleName();
+            case "nickname":
+                return getNickname();
+            case "profile":
+                return getProfile();
+            case "picture":
+                return getPicture();
+            case "website":
+                return getWebsite();
+            case "gender":
+                return getGender();
+            case "zoneinfo":
+                return getZoneinfo();
+            case "locale":
+                return getLocale();
+            case "updated_at":
+                return getUpdatedTime();
+            case "birthdate":
+                return getBirthdate();
+            case "email":
+                return getEmail();
+            case "email_verified":
+                return getEmailVerified() != null ? getEmailVerified().toString() : null;
+            case "phone_number":
+                return getPhoneNumber();
+            case "phone_number_verified":
+                return getPhoneNumberVerified() != null ? getPhoneNumberVerified().toString() : null;
+            default:
+                final JsonElement value = customClaims != null ? customClaims.get(claim) : null;
+                return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+        }
+    }
+
+    /**
+     * Write the claims among those allowed as a JSON object, in the order of {@link #toJson()}.
+     * Claims without a value are left out.
+     *
+     * @param out     the writer
+     * @param allowed the claims allowed for release
+     * @throws IOException if the claims cannot be written
+     */
+    public void writeJson(final JsonWriter out, final Set<String> allowed) throws IOException {
+        out.beginObject();
+        writeClaim(out, allowed, "sub", getSub());
+        writeClaim(out, allowed, "name", getName());
+        writeClaim(out, allowed, "preferred_username", getPreferredUsername());
+        writeClaim(out, allowed, "given_name", getGivenName());
+        writeClaim(out, allowed, "family_name", getFamilyName());
+        writeClaim(out, allowed, "middle_name", getMiddleName());
+        writeClaim(out, allowed, "nickname", getNickname());
+        writeClaim(out, allowed, "profile", getProfile());
+        writeClaim(out, allowed, "picture", getPicture());
+        writeClaim(out, allowed, "website", getWebsite());
+        writeClaim(out, allowed, "gender", getGender());
+        writeClaim(out, allowed, "zoneinfo", getZoneinfo());
+        writeClaim(out, allowed, "locale", getLocale());
+        writeClaim(out, allowed, "updated_at", getUpdatedTime());
+        writeClaim(out, allowed, "birthdate", getBirthdate());
+        writeClaim(out, allowed, "email", getEmail());
+        if (getEmailVerified() != null && allowed.contains("email_verified")) {
+            out.name("email_verified").value(getEmailVerified());
+        }
+        writeClaim(out, allowed, "phone_number", getPhoneNumber());
+        if (getPhoneNumberVerified() != null && allowed.contains("phone_number_verified")) {
+            out.name("phone_number_verified").value(getPhoneNumberVerified());
+        }
+        final Address address = getAddress();
+        if (address != null && allowed.contains("address")) {
+            out.name("address").beginObject();
+            writeValue(out, "formatted", address.getFormatted());
+            writeValue(out, "street_address", address.getStreetAddress());
+            writeValue(out, "locality", address.getLocality());
+            writeValue(out, "region", address.getRegion());
+            writeValue(out, "postal_code", address.getPostalCode());
+            writeValue(out, "country", address.getCountry());
+            out.endObject();
+        }
+        if (customClaims != null) {
+            for (final Map.Entry<String, JsonElement> claim : customClaims.entrySet()) {
+                if (allowed.contains(claim.getKey()) && !claim.getValue().isJsonNull()) {
+                    out.name(claim.getKey());
+                    writeElement(out, claim.getValue());
+                }
+            }
+        }
+        out.endObject();
+    }
+
+    /**
+     * Write one string claim if it is allowed.
+     *
+     * @param out     the writer
+     * @param allowed the claims allowed for release
+     * @param claim   the claim
+     * @param value   the value
+     * @throws IOException if the claim cannot be written
+     */
+    private static void writeClaim(final JsonWriter out, final Set<String> allowed, final String claim,
+                                   final String value) throws IOException {
+        if (allowed.contains(claim)) {
+            writeValue(out, claim, value);
+        }
+    }
+
+    /**
+     * Write one string member if it has a value.
+     *
+     * @param out   the writer
+     * @param name  the name
+     * @param value the value
+     * @throws IOException if the member cannot be written
+     */
+    private static void writeValue(final JsonWriter out, final String name, final String value)
+        throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    @Override
+    public JsonObject toJson() {
+        final JsonObject obj = super.toJson();
+        if (customClaims != null) {
+            for (final Map.Entry<String, JsonElement> claim : customClaims.entrySet()) {
+                obj.add(claim.getKey(), claim.getValue());
+            }
+        }
+        return obj;
+    }
+}
@@ -17,27 +17,39 @@
 package net.shibboleth.idp.oidc.client.userinfo;
 
 import com.google.common.base.Strings;
-import net.shibboleth.idp.attribute.EmptyAttributeValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import net.shibboleth.idp.attribute.IdPAttribute;
-import net.shibboleth.idp.attribute.IdPAttributeValue;
 import net.shibboleth.idp.attribute.filter.AttributeFilter;
 import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
 import net.shibboleth.idp.attribute.resolver.AttributeResolver;
 import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
 import net.shibboleth.idp.oidc.OIDCException;
+import net.shibboleth.idp.oidc.util.CircuitBreaker;
 import net.shibboleth.utilities.java.support.service.ReloadableService;
-import org.mitre.openid.connect.model.DefaultAddress;
-import org.mitre.openid.connect.model.DefaultUserInfo;
+import org.joda.time.DateTime;
 import org.mitre.openid.connect.model.UserInfo;
 import org.mitre.openid.connect.repository.UserInfoRepository;
+import org.mitre.openid.connect.service.ScopeClaimTranslationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
+import java.util.Collection;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The type Shibboleth user info repository.
@@ -50,6 +62,11 @@ public class ShibbolethUserInfoRepository implements UserInfoRepository {
      */
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
+    /**
+     * The number of independently locked segments of the attribute cache.
+     */
+    private static final int CACHE_CONCURRENCY_LEVEL = 16;
+
     @Autowired
     @Qualifier("shibboleth.AttributeResolverService")
     private ReloadableService<AttributeResolver> attributeResolverService;
@@ -58,161 +75,449 @@ public class ShibbolethUserInfoRepository implements UserInfoRepository {
     @Qualifier("shibboleth.AttributeFilterService")
     private ReloadableService<AttributeFilter> attributeFilterService;
 
+    /**
+     * The Scope claim translation service.
+     */
+    @Autowired
+    private ScopeClaimTranslationService scopeClaimTranslationService;
+
+    /**
+     * Whether only the attributes behind the claims of the granted scopes are resolved.
+     */
+    private boolean selectiveResolution;
+
+    /**
+     * The Claim mapping engine.
+     */
+    @Autowired
+    private ClaimMappingEngine claimMappingEngine;
+
+    /**
+     * Filtered attributes per principal and recipient.
+     */
+    private Cache<CacheKey, CachedAttributes> attributeCache;
+
+    /**
+     * How long filtered attributes are cached, in milliseconds.
+     */
+    private long cacheTimeToLive = 60000;
+
+    /**
+     * The maximum number of cached principal and recipient pairs.
+     */
+    private long cacheMaximumSize = 10000;
+
+    /**
+     * The last successfully resolved attributes per principal and recipient,
+     * served while the attribute resolver is failing.
+     */
+    private Cache<CacheKey, CachedAttributes> lastKnownGood;
+
+    /**
+     * How long the last known good attributes may be served, in milliseconds; zero disables them.
+     */
+    private long staleness = 3600000;
+
+    /**
+     * The breaker around the attribute resolver.
+     */
+    private CircuitBreaker resolverBreaker;
+
+    /**
+     * The number of consecutive resolution failures that opens the breaker.
+     */
+    private int breakerFailureThreshold = 5;
+
+    /**
+     * How long the breaker stays open before probing the resolver, in milliseconds.
+     */
+    private long breakerOpenDuration = 30000;
+
+    /**
+     * Build the attribute caches and the resolver breaker.
+     */
+    @PostConstruct
+    public void initialize() {
+        attributeCache = CacheBuilder.newBuilder()
+                .concurrencyLevel(CACHE_CONCURRENCY_LEVEL)
+                .maximumSize(cacheMaximumSize)
+                .expireAfterWrite(cacheTimeToLive, TimeUnit.MILLISECONDS)
+                .build();
+        if (staleness > 0) {
+            lastKnownGood = CacheBuilder.newBuilder()
+                    .concurrencyLevel(CACHE_CONCURRENCY_LEVEL)
+                    .maximumSize(cacheMaximumSize)
+                    .expireAfterWrite(staleness, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        resolverBreaker = new CircuitBreaker("Attribute resolver", breakerFailureThreshold, breakerOpenDuration);
+    }
+
     @Override
     public UserInfo getByUsername(final String username) {
         return getByUsernameAndClientId(username, null);
     }
 
     public UserInfo getByUsernameAndClientId(final String username, final String recipientId) {
-        final DefaultUserInfo userInfo = new DefaultUserInfo();
+        return getByUsernameAndClientId(username, recipientId, null);
+    }
+
+    /**
+     * Gets the userinfo released to the recipient. With selective resolution on,
+     * only the attributes behind the claims of the given scopes are resolved.
+     *
+     * @param username    the username
+     * @param recipientId the recipient id
+     * @param scopes      the granted scopes, or null to resolve every attribute
+     * @return the user info
+     * @throws AttributesUnavailableException if the attributes can neither be resolved nor served stale
+     */
+    public UserInfo getByUsernameAndClientId(final String username, final String recipientId,
+                                             final Set<String> scopes) {
+        final Map<String, IdPAttribute> filteredAttributes =
+            getFilteredAttributes(username, recipientId, getRequestedAttributeIds(scopes));
+        return buildUserInfo(username, filteredAttributes.values());
+    }
+
+    /**
+     * Build the userinfo of a principal from attributes already resolved and filtered
+     * for release, such as those of the attribute context of the login flow.
+     *
+     * @param username           the username
+     * @param filteredAttributes the attributes authorized for release
+     * @return the user info
+     */
+    public UserInfo buildUserInfo(final String username, final Collection<IdPAttribute> filteredAttributes) {
+        final ShibbolethUserInfo userInfo = new ShibbolethUserInfo();
         log.debug("Set userinfo preferred username to {}", username);
         userInfo.setPreferredUsername(username);
 
         log.debug("Set userinfo sub claim to {}", username);
         userInfo.setSub(username);
 
+        log.debug("Mapping {} attributes authorized for release", filteredAttributes.size());
+        claimMappingEngine.map(userInfo, filteredAttributes);
+
+        if (Strings.isNullOrEmpty(userInfo.getSub())) {
+            log.warn("userinfo sub claim cannot be null/empty. Reset claim value to {}", username);
+            userInfo.setSub(username);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Final userinfo object constructed from attributes is\n {}", userInfo.toJson());
+        }
+        return userInfo;
+    }
+
+    @Override
+    public UserInfo getByEmailAddress(final String s) {
+        throw new OIDCException("Operation is not supported");
+    }
+
+    /**
+     * Gets the attributes released to the recipient, from the cache if they were
+     * resolved since the resolver and filter services last reloaded. Concurrent
+     * callers for the same principal, recipient and attributes wait on a single
+     * resolution and share its result; callers for other keys are not held up.
+     *
+     * <p>When resolution fails, or the resolver breaker is open, the last attributes
+     * successfully resolved for the key are served if they are within the staleness bound.</p>
+     *
+     * @param username     the username
+     * @param recipientId  the recipient id
+     * @param attributeIds the attribute ids to resolve, or null for all
+     * @return the filtered attributes
+     */
+    private Map<String, IdPAttribute> getFilteredAttributes(final String username,
+                                                            final String recipientId,
+                                                            final Set<String> attributeIds) {
+        final DateTime resolverReload = attributeResolverService.getLastSuccessfulReloadInstant();
+        final DateTime filterReload = attributeFilterService.getLastSuccessfulReloadInstant();
+        final CacheKey key = new CacheKey(username, recipientId, attributeIds);
+
+        final CachedAttributes cached = attributeCache.getIfPresent(key);
+        if (cached != null) {
+            if (cached.isCurrent(resolverReload, filterReload)) {
+                log.debug("Found cached attributes for {} released to {}", username, recipientId);
+                return cached.attributes;
+            }
+            log.debug("Attribute services have reloaded; discarding cached attributes of {}", username);
+            attributeCache.invalidate(key);
+        }
+
+        if (!resolverBreaker.allowRequest()) {
+            log.debug("{} is open; not resolving attributes of {}", resolverBreaker, username);
+            return getLastKnownGood(key, null);
+        }
+
+        final Callable<CachedAttributes> resolution = new Callable<CachedAttributes>() {
+            @Override
+            public CachedAttributes call() throws Exception {
+                final CachedAttributes resolved;
+                try {
+                    resolved = new CachedAttributes(resolveAndFilterAttributes(username, recipientId, attributeIds),
+                        resolverReload, filterReload);
+                } catch (final Exception e) {
+                    if (resolverBreaker.recordFailure()) {
+                        log.warn("Opened {} after failing to resolve attributes of {}", resolverBreaker, username);
+                    }
+                    throw e;
+                }
+                resolverBreaker.recordSuccess();
+                if (lastKnownGood != null) {
+                    lastKnownGood.put(key, resolved);
+                }
+                return resolved;
+            }
+        };
+        try {
+            final CachedAttributes resolved = attributeCache.get(key, resolution);
+            if (resolved.isCurrent(resolverReload, filterReload)) {
+                return resolved.attributes;
+            }
+            log.debug("Attribute services reloaded during resolution; resolving attributes of {} again", username);
+            return resolution.call().attributes;
+        } catch (final ExecutionException | UncheckedExecutionException e) {
+            return getLastKnownGood(key, e.getCause());
+        } catch (final Exception e) {
+            return getLastKnownGood(key, e);
+        }
+    }
+
+    /**
+     * Gets the last attributes successfully resolved for the key, when resolution is not possible.
+     *
+     * @param key   the key
+     * @param cause the resolution failure, or null if resolution was not attempted
+     * @return the filtered attributes
+     * @throws AttributesUnavailableException if there are no attributes within the staleness bound
+     */
+    private Map<String, IdPAttribute> getLastKnownGood(final CacheKey key, final Throwable cause) {
+        if (cause != null) {
+            log.error("Could not resolve attributes of {} for {}", key.principal, key.recipientId, cause);
+        }
+        final CachedAttributes lastKnown = lastKnownGood != null ? lastKnownGood.getIfPresent(key) : null;
+        if (lastKnown == null) {
+            throw new AttributesUnavailableException("Attributes of " + key.principal + " are unavailable", cause);
+        }
+        log.warn("Serving last known good attributes of {} for {}", key.principal, key.recipientId);
+        return lastKnown.attributes;
+    }
+
+    /**
+     * Resolve the attributes of the principal and filter them for the recipient.
+     *
+     * @param username     the username
+     * @param recipientId  the recipient id
+     * @param attributeIds the attribute ids to resolve, or null for all
+     * @return the filtered attributes
+     * @throws Exception if the attributes cannot be resolved or filtered
+     */
+    private Map<String, IdPAttribute> resolveAndFilterAttributes(final String username,
+                                                                 final String recipientId,
+                                                                 final Set<String> attributeIds)
+        throws Exception {
         final AttributeResolver resolver = (AttributeResolver) this.attributeResolverService.getServiceableComponent();
         if (resolver == null) {
-            log.error("Could not determine the attribute resolver service from context");
-            return userInfo;
+            throw new OIDCException("Could not determine the attribute resolver service from context");
         }
         final AttributeFilter filter = (AttributeFilter) this.attributeFilterService.getServiceableComponent();
         if (filter == null) {
-            log.error("Could not determine the attribute filter service from context");
-            return userInfo;
+            throw new OIDCException("Could not determine the attribute filter service from context");
         }
 
-        try {
-            final AttributeResolutionContext attributeContext = new AttributeResolutionContext();
-            attributeContext.setPrincipal(username);
-            attributeContext.setAttributeIssuerID(getClass().getSimpleName());
-            attributeContext.setAllowCachedResults(true);
-            attributeContext.setAttributeRecipientID(recipientId);
-            resolver.resolveAttributes(attributeContext);
-            final Map<String, IdPAttribute> resolvedAttributes = attributeContext.getResolvedIdPAttributes();
-
-            final AttributeFilterContext filterContext = new AttributeFilterContext();
-            filterContext.setPrincipal(username);
-            filterContext.setAttributeIssuerID(getClass().getSimpleName());
-            filterContext.setPrefilteredIdPAttributes(resolvedAttributes.values());
-            filterContext.setAttributeRecipientID(recipientId);
-            filter.filterAttributes(filterContext);
-
-            final Map<String, IdPAttribute> filteredAttributes = filterContext.getFilteredIdPAttributes();
-            for (final String attributeKey : filteredAttributes.keySet()) {
-                final IdPAttribute attribute = filteredAttributes.get(attributeKey);
-                log.debug("Attribute {} is authorized for release. Mapping...", attribute.getId());
-                setUserInfoClaimByAttribute(username, userInfo, attribute);
-            }
-        } catch (final Exception e) {
-            log.error(e.getMessage(), e);
+        final AttributeResolutionContext attributeContext = new AttributeResolutionContext();
+        attributeContext.setPrincipal(username);
+        attributeContext.setAttributeIssuerID(getClass().getSimpleName());
+        attributeContext.setAllowCachedResults(true);
+        attributeContext.setAttributeRecipientID(recipientId);
+        if (attributeIds != null) {
+            log.debug("Resolving only attributes {} for {}", attributeIds, username);
+            attributeContext.setRequestedIdPAttributeNames(attributeIds);
         }
+        resolver.resolveAttributes(attributeContext);
+        final Map<String, IdPAttribute> resolvedAttributes = attributeContext.getResolvedIdPAttributes();
 
-        if (Strings.isNullOrEmpty(userInfo.getSub())) {
-            log.warn("userinfo sub claim cannot be null/empty. Reset claim value to {}", username);
-            userInfo.setSub(username);
+        final AttributeFilterContext filterContext = new AttributeFilterContext();
+        filterContext.setPrincipal(username);
+        filterContext.setAttributeIssuerID(getClass().getSimpleName());
+        filterContext.setPrefilteredIdPAttributes(resolvedAttributes.values());
+        filterContext.setAttributeRecipientID(recipientId);
+        filter.filterAttributes(filterContext);
+
+        return ImmutableMap.copyOf(filterContext.getFilteredIdPAttributes());
+    }
+
+    /**
+     * Gets the ids of the attributes behind the claims of the scopes.
+     *
+     * @param scopes the scopes
+     * @return the attribute ids, or null if every attribute should be resolved
+     */
+    private Set<String> getRequestedAttributeIds(final Set<String> scopes) {
+        if (!selectiveResolution || scopes == null) {
+            return null;
         }
-        log.debug("Final userinfo object constructed from attributes is\n {}", userInfo.toJson());
-        return userInfo;
+        final ImmutableSet.Builder<String> ids = ImmutableSet.builder();
+        for (final String scope : scopes) {
+            for (final String claim : scopeClaimTranslationService.getClaimsForScope(scope)) {
+                ids.addAll(claimMappingEngine.getAttributeIds(claim));
+            }
+        }
+        return ids.build();
     }
 
-    @Override
-    public UserInfo getByEmailAddress(final String s) {
-        throw new OIDCException("Operation is not supported");
+    /**
+     * Sets whether only the attributes behind the claims of the granted scopes are resolved.
+     *
+     * @param selective the selective
+     */
+    @Value("%{oidc.userinfo.resolution.selective:false}")
+    public void setSelectiveResolution(final boolean selective) {
+        this.selectiveResolution = selective;
     }
-    
+
+    /**
+     * Sets how long filtered attributes are cached.
+     *
+     * @param ttl the time to live in milliseconds
+     */
+    @Value("%{oidc.userinfo.cache.ttl:60000}")
+    public void setCacheTimeToLive(final long ttl) {
+        this.cacheTimeToLive = ttl;
+    }
+
+    /**
+     * Sets the maximum number of cached principal and recipient pairs.
+     *
+     * @param size the size
+     */
+    @Value("%{oidc.userinfo.cache.maxSize:10000}")
+    public void setCacheMaximumSize(final long size) {
+        this.cacheMaximumSize = size;
+    }
+
+    /**
+     * Sets how long the last known good attributes may be served while resolution fails.
+     *
+     * @param stalenessMillis the staleness bound in milliseconds
+     */
+    @Value("%{oidc.userinfo.cache.staleness:3600000}")
+    public void setStaleness(final long stalenessMillis) {
+        this.staleness = stalenessMillis;
+    }
+
     /**
-     * Sets user info claim by attribute.
+     * Sets the number of consecutive resolution failures that opens the breaker.
      *
-     * @param principal the principal
-     * @param userInfo  the user info
-     * @param attribute the attribute
-     */
-    private void setUserInfoClaimByAttribute(final String principal,
-                                             final DefaultUserInfo userInfo,
-                                             final IdPAttribute attribute) {
-        switch (attribute.getId()) {
-            case "sub":
-                userInfo.setSub(getAttributeValue(attribute).getValue().toString());
-                log.debug("Overriding existing sub value {} to {}", principal, userInfo.getSub());
-                break;
-            case "name":
-                userInfo.setName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "given_name":
-                userInfo.setGivenName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "family_name":
-                userInfo.setFamilyName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "middle_name":
-                userInfo.setMiddleName(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "nickname":
-                userInfo.setNickname(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "preferred_username":
-                userInfo.setPreferredUsername(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "profile":
-                userInfo.setProfile(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "picture":
-                userInfo.setPicture(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "website":
-                userInfo.setWebsite(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "email":
-                userInfo.setEmail(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "email_verified":
-                userInfo.setEmailVerified(Boolean.valueOf(getAttributeValue(attribute).getValue().toString()));
-                break;
-            case "gender":
-                userInfo.setGender(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "birthdate":
-                userInfo.setBirthdate(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "zoneinfo":
-                userInfo.setZoneinfo(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "locale":
-                userInfo.setLocale(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "phone_number":
-                userInfo.setPhoneNumber(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "phone_number_verified":
-                userInfo.setPhoneNumberVerified(
-                    Boolean.valueOf(getAttributeValue(attribute).getValue().toString()));
-                break;
-            case "updated_at":
-                userInfo.setUpdatedTime(getAttributeValue(attribute).getValue().toString());
-                break;
-            case "address":
-                final DefaultAddress address = new DefaultAddress();
-                address.setFormatted(getAttributeValue(attribute).getValue().toString());
-                userInfo.setAddress(address);
-                break;
-            default:
-                log.warn("Unrecognized claim {} ignored.", attribute.getId());
-        }
-    }
-
-    /**
-     * Gets attribute value.
+     * @param threshold the threshold
+     */
+    @Value("%{oidc.userinfo.breaker.failureThreshold:5}")
+    public void setBreakerFailureThreshold(final int threshold) {
+        this.breakerFailureThreshold = threshold;
+    }
+
+    /**
+     * Sets how long the breaker stays open before probing the resolver.
      *
-     * @param attribute the attribute
-     * @return the attribute value
+     * @param openDuration the open duration in milliseconds
      */
-    protected IdPAttributeValue<?> getAttributeValue(final IdPAttribute attribute) {
-        if (!attribute.getValues().isEmpty()) {
-            return attribute.getValues().get(0);
+    @Value("%{oidc.userinfo.breaker.openDuration:30000}")
+    public void setBreakerOpenDuration(final long openDuration) {
+        this.breakerOpenDuration = openDuration;
+    }
+    
+    /**
+     * Cache key of a principal and the recipient of its attributes.
+     */
+    private static final class CacheKey {
+        /**
+         * The Principal.
+         */
+        private final String principal;
+
+        /**
+         * The Recipient id.
+         */
+        private final String recipientId;
+
+        /**
+         * The requested attribute ids, or null for all.
+         */
+        private final Set<String> attributeIds;
+
+        /**
+         * Instantiates a new Cache key.
+         *
+         * @param p   the principal
+         * @param r   the recipient id
+         * @param ids the requested attribute ids
+         */
+        CacheKey(final String p, final String r, final Set<String> ids) {
+            this.principal = p;
+            this.recipientId = r;
+            this.attributeIds = ids;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) o;
+            return Objects.equals(principal, other.principal) && Objects.equals(recipientId, other.recipientId)
+                && Objects.equals(attributeIds, other.attributeIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(principal, recipientId, attributeIds);
         }
-        return new EmptyAttributeValue(EmptyAttributeValue.EmptyType.NULL_VALUE);
     }
 
+    /**
+     * Filtered attributes stamped with the reload instants of the services that produced them.
+     */
+    private static final class CachedAttributes {
+        /**
+         * The Attributes.
+         */
+        private final Map<String, IdPAttribute> attributes;
+
+        /**
+         * The Resolver reload.
+         */
+        private final DateTime resolverReload;
+
+        /**
+         * The Filter reload.
+         */
+        private final DateTime filterReload;
 
+        /**
+         * Instantiates a new Cached attributes.
+         *
+         * @param attrs    the attributes
+         * @param resolver the resolver reload instant
+         * @param filter   the filter reload instant
+         */
+        CachedAttributes(final Map<String, IdPAttribute> attrs, final DateTime resolver, final DateTime filter) {
+            this.attributes = attrs;
+            this.resolverReload = resolver;
+            this.filterReload = filter;
+        }
+
+        /**
+         * Whether neither service has reloaded since the attributes were resolved.
+         *
+         * @param resolver the current resolver reload instant
+         * @param filter   the current filter reload instant
+         * @return true if current
+         */
+        boolean isCurrent(final DateTime resolver, final DateTime filter) {
+            return Objects.equals(resolverReload, resolver) && Objects.equals(filterReload, filter);
+        }
+    }
 }
@@ -16,10 +16,12 @@
  */
 package net.shibboleth.idp.oidc.client.userinfo;
 
+import net.shibboleth.idp.attribute.IdPAttribute;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.openid.connect.model.UserInfo;
 import org.mitre.openid.connect.repository.UserInfoRepository;
+import org.mitre.openid.connect.request.ConnectRequestParameters;
 import org.mitre.openid.connect.service.PairwiseIdentiferService;
 import org.mitre.openid.connect.service.UserInfoService;
 import org.opensaml.profile.context.ProfileRequestContext;
@@ -28,7 +30,18 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Primary;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
 
 
 /**
@@ -36,6 +49,11 @@ import org.springframework.stereotype.Service;
  * This component is almost identical to the default {@link org.mitre.openid.connect.service.impl.DefaultUserInfoService}
  * except that it has a concrete reference to the shibboleth userinfo repository implemented by OIDC  at {@link ShibbolethUserInfoRepository}
  * in order to retrieve userinfo values based on client id and username.
+ *
+ * The methods of {@link UserInfoService} serve token and id token issuance, which only
+ * need the subject; when the attributes are unavailable they return a userinfo that
+ * carries only the subject. The methods that serve the userinfo endpoint and the
+ * consent page let {@link AttributesUnavailableException} through instead.
  */
 @Service("openIdConnectUserInfoService")
 @Primary
@@ -66,7 +84,11 @@ public class ShibbolethUserInfoService implements UserInfoService {
 
     @Override
     public UserInfo getByUsername(final String username) {
-        return userInfoRepository.getByUsername(username);
+        try {
+            return userInfoRepository.getByUsername(username);
+        } catch (final AttributesUnavailableException e) {
+            return getSubjectOnly(username, e);
+        }
     }
 
     @Override
@@ -75,8 +97,147 @@ public class ShibbolethUserInfoService implements UserInfoService {
         log.debug("Locating client {} for username {}", clientId, username);
 
         final ClientDetailsEntity client = clientService.loadClientByClientId(clientId);
-        final UserInfo userInfo = this.userInfoRepository.getByUsernameAndClientId(username, clientId);
+        UserInfo userInfo;
+        try {
+            userInfo = this.userInfoRepository.getByUsernameAndClientId(username, clientId,
+                getGrantedScopes(clientId));
+        } catch (final AttributesUnavailableException e) {
+            userInfo = getSubjectOnly(username, e);
+        }
+        return applySubjectType(client, userInfo, username, clientId);
+    }
+
+    /**
+     * Gets a userinfo that carries only the subject, for when the attributes are unavailable.
+     *
+     * @param username the username
+     * @param cause    the reason the attributes are unavailable
+     * @return the user info
+     */
+    private UserInfo getSubjectOnly(final String username, final AttributesUnavailableException cause) {
+        log.warn("Attributes of {} are unavailable; only the subject is released: {}", username,
+            cause.getMessage());
+        return this.userInfoRepository.buildUserInfo(username, Collections.<IdPAttribute>emptyList());
+    }
+
+    /**
+     * Gets the userinfo of a principal for a client that is already loaded.
+     *
+     * @param username the username
+     * @param client   the client
+     * @return the user info
+     * @throws AttributesUnavailableException if the attributes can neither be resolved nor served stale
+     */
+    public UserInfo getByUsernameAndClient(final String username, final ClientDetailsEntity client) {
+        final String clientId = client.getClientId();
+        final UserInfo userInfo = this.userInfoRepository.getByUsernameAndClientId(username, clientId,
+            getGrantedScopes(clientId));
+        return applySubjectType(client, userInfo, username, clientId);
+    }
+
+    /**
+     * Gets the userinfo released for an access token, without relying on the
+     * security context or request of the calling thread.
+     *
+     * @param username        the username
+     * @param request         the request of the access token
+     * @param claimsRequested whether the request asks for individual claims
+     * @return the user info
+     * @throws AttributesUnavailableException if the attributes can neither be resolved nor served stale
+     */
+    public UserInfo getByUsernameAndClientId(final String username, final OAuth2Request request,
+                                             final boolean claimsRequested) {
+        final String clientId = request.getClientId();
+        log.debug("Locating client {} for username {}", clientId, username);
+
+        final ClientDetailsEntity client = clientService.loadClientByClientId(clientId);
+        final UserInfo userInfo = this.userInfoRepository.getByUsernameAndClientId(username, clientId,
+            getGrantedScopes(request, claimsRequested));
+        return applySubjectType(client, userInfo, username, clientId);
+    }
 
+    /**
+     * Gets the scopes granted to the client by the access token of the current request.
+     *
+     * @param clientId the client id
+     * @return the scopes, or null if every attribute should be resolved
+     */
+    private Set<String> getGrantedScopes(final String clientId) {
+        final Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (!(authentication instanceof OAuth2Authentication)) {
+            return null;
+        }
+        final OAuth2Request request = ((OAuth2Authentication) authentication).getOAuth2Request();
+        if (!clientId.equals(request.getClientId())) {
+            return null;
+        }
+        final RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        final boolean claimsRequested = attributes instanceof ServletRequestAttributes
+            && ((ServletRequestAttributes) attributes).getRequest().getParameter(ConnectRequestParameters.CLAIMS)
+            != null;
+        return getGrantedScopes(request, claimsRequested);
+    }
+
+    /**
+     * Gets the scopes granted by the request of an access token. Requests that ask for
+     * individual claims, whether on the userinfo call itself or on the original
+     * authorization request, may need claims outside of those scopes.
+     *
+     * @param request         the request of the access token
+     * @param claimsRequested whether the userinfo call asks for individual claims
+     * @return the scopes, or null if every attribute should be resolved
+     */
+    private Set<String> getGrantedScopes(final OAuth2Request request, final boolean claimsRequested) {
+        if (claimsRequested || request.getExtensions().containsKey(ConnectRequestParameters.CLAIMS)) {
+            return null;
+        }
+        return request.getScope();
+    }
+
+    /**
+     * Gets the userinfo of a principal from attributes already resolved and filtered
+     * for the client, without resolving them again.
+     *
+     * @param username           the username
+     * @param clientId           the client id
+     * @param filteredAttributes the attributes authorized for release to the client
+     * @return the user info
+     */
+    public UserInfo getByUsernameAndClientId(final String username, final String clientId,
+                                             final Collection<IdPAttribute> filteredAttributes) {
+
+        log.debug("Locating client {} for username {} with {} filtered attributes",
+            clientId, username, filteredAttributes.size());
+
+        return getByUsernameAndClient(username, clientService.loadClientByClientId(clientId), filteredAttributes);
+    }
+
+    /**
+     * Gets the userinfo of a principal for a client that is already loaded, from
+     * attributes already resolved and filtered for the client.
+     *
+     * @param username           the username
+     * @param client             the client
+     * @param filteredAttributes the attributes authorized for release to the client
+     * @return the user info
+     */
+    public UserInfo getByUsernameAndClient(final String username, final ClientDetailsEntity client,
+                                           final Collection<IdPAttribute> filteredAttributes) {
+        final UserInfo userInfo = this.userInfoRepository.buildUserInfo(username, filteredAttributes);
+        return applySubjectType(client, userInfo, username, client != null ? client.getClientId() : null);
+    }
+
+    /**
+     * Replace the sub claim with a pairwise identifier if the client asks for one.
+     *
+     * @param client   the client
+     * @param userInfo the user info
+     * @param username the username
+     * @param clientId the client id
+     * @return the user info, or null if either the client or the userinfo is missing
+     */
+    private UserInfo applySubjectType(final ClientDetailsEntity client, final UserInfo userInfo,
+                                      final String username, final String clientId) {
         if (client == null || userInfo == null) {
             log.debug("No client or userinfo found for {} and {}", clientId, username);
             return null;
@@ -92,7 +253,6 @@ public class ShibbolethUserInfoService implements UserInfoService {
         }
 
         return userInfo;
-
     }
 
     @Override
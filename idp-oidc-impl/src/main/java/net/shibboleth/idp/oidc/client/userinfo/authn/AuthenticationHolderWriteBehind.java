@@ -0,0 +1,606 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.mitre.oauth2.repository.OAuth2TokenRepository;
+import org.mitre.oauth2.service.SystemScopeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for the authentication holders of client-associated
+ * (registration and resource) tokens. Holders are buffered in a bounded queue
+ * and inserted in batches by a background thread; when the queue is full the
+ * holder is saved on the calling thread. A token saved against a pending
+ * holder is queued with it, since its row references the holder row, and both
+ * are inserted in the same transaction. Pending tokens remain visible to
+ * lookups by value and by client until they are written. Whatever is still
+ * queued at shutdown is flushed.
+ *
+ * An entry is completed only once its write has committed. An entry whose
+ * write fails is written again with the next batch, up to a maximum number of
+ * attempts. After that the holder and its queued token are saved directly,
+ * outside the batch. If that fails as well the entry stays pending, with its
+ * token visible to lookups, and the next token saved against the holder saves
+ * both on the calling thread, where the failure surfaces; whatever is left is
+ * saved once more at shutdown.
+ */
+@Component("authenticationHolderWriteBehind")
+public class AuthenticationHolderWriteBehind {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(AuthenticationHolderWriteBehind.class);
+
+    /**
+     * Pending entries keyed by holder instance.
+     */
+    private final Map<AuthenticationHolderEntity, Entry> pendingHolders =
+            Collections.synchronizedMap(new IdentityHashMap<AuthenticationHolderEntity, Entry>());
+
+    /**
+     * Pending tokens keyed by value.
+     */
+    private final ConcurrentMap<String, OAuth2AccessTokenEntity> pendingTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Pending registration tokens keyed by client id.
+     */
+    private final ConcurrentMap<String, OAuth2AccessTokenEntity> pendingRegistrationTokens =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The Queue.
+     */
+    private BlockingQueue<Entry> queue;
+
+    /**
+     * Capacity of the queue.
+     */
+    private int capacity = 1000;
+
+    /**
+     * Maximum number of holders inserted per transaction.
+     */
+    private int batchSize = 100;
+
+    /**
+     * How long in milliseconds the writer waits for more holders before flushing a partial batch.
+     */
+    private long flushInterval = 200;
+
+    /**
+     * Maximum number of attempts to write an entry.
+     */
+    private int maxAttempts = 3;
+
+    /**
+     * Entries whose write failed, to be written with the next batch. Owned by the writer.
+     */
+    private final List<Entry> retries = new ArrayList<>();
+
+    /**
+     * The Writer thread.
+     */
+    private Thread writer;
+
+    /**
+     * Whether the writer is running.
+     */
+    private volatile boolean running;
+
+    /**
+     * The Holder repository.
+     */
+    @Autowired
+    private AuthenticationHolderRepository holderRepository;
+
+    /**
+     * The Token repository.
+     */
+    @Autowired
+    private OAuth2TokenRepository tokenRepository;
+
+    /**
+     * The Transaction template.
+     */
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Start the writer.
+     */
+    @PostConstruct
+    public void initialize() {
+        queue = new LinkedBlockingQueue<>(capacity);
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "oidc-holder-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer and flush everything still queued.
+     */
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Entry> remaining = new ArrayList<>(retries);
+        retries.clear();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            log.info("Flushing {} pending authentication holder(s) on shutdown", remaining.size());
+        }
+        while (!remaining.isEmpty()) {
+            remaining = write(remaining);
+        }
+
+        final List<Entry> failed = new ArrayList<>();
+        synchronized (pendingHolders) {
+            for (final Entry entry : pendingHolders.values()) {
+                if (entry.failure != null) {
+                    failed.add(entry);
+                }
+            }
+        }
+        for (final Entry entry : failed) {
+            synchronized (entry) {
+                try {
+                    saveNow(entry);
+                } catch (final RuntimeException e) {
+                    log.error("Could not save authentication holder for client {} on shutdown",
+                            entry.holder.getClientId(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets transaction manager.
+     *
+     * @param transactionManager the transaction manager
+     */
+    @Resource(name = "transactionManager")
+    public void setTransactionManager(final PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Queue the holder for insertion, or save it now if the queue is full.
+     *
+     * @param holder the holder
+     * @return the holder, which receives its id once written
+     */
+    public AuthenticationHolderEntity save(final AuthenticationHolderEntity holder) {
+        if (holder.getId() != null) {
+            return holderRepository.save(holder);
+        }
+        final Entry entry = new Entry(holder);
+        pendingHolders.put(holder, entry);
+        if (!queue.offer(entry)) {
+            pendingHolders.remove(holder);
+            log.debug("Write-behind queue is full; saving authentication holder on the calling thread");
+            return holderRepository.save(holder);
+        }
+        return holder;
+    }
+
+    /**
+     * Queue the token with its holder if the holder is still pending.
+     *
+     * @param token the token
+     * @return true if the token was queued; false if it must be saved directly
+     */
+    public boolean attach(final OAuth2AccessTokenEntity token) {
+        final AuthenticationHolderEntity holder = token.getAuthenticationHolder();
+        if (holder == null || holder.getId() != null) {
+            return false;
+        }
+        final Entry entry = pendingHolders.get(holder);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            while (entry.saved != null && !entry.written && entry.failure == null) {
+                try {
+                    entry.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (entry.failure != null) {
+                log.warn("Authentication holder for client {} could not be written behind; saving it now",
+                        entry.holder.getClientId());
+                saveNow(entry);
+                token.setAuthenticationHolder(entry.saved);
+                return false;
+            }
+            if (entry.written || entry.saved != null) {
+                if (entry.saved != null) {
+                    token.setAuthenticationHolder(entry.saved);
+                }
+                return false;
+            }
+            entry.token = token;
+            pendingTokens.put(token.getValue(), token);
+            if (isRegistrationToken(token)) {
+                pendingRegistrationTokens.put(token.getClient().getClientId(), token);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets a pending token by value.
+     *
+     * @param value the value
+     * @return the token, or null
+     */
+    public OAuth2AccessTokenEntity getPendingToken(final String value) {
+        return value != null ? pendingTokens.get(value) : null;
+    }
+
+    /**
+     * Gets a pending registration token of the client.
+     *
+     * @param clientId the client id
+     * @return the token, or null
+     */
+    public OAuth2AccessTokenEntity getPendingRegistrationToken(final String clientId) {
+        return clientId != null ? pendingRegistrationTokens.get(clientId) : null;
+    }
+
+    /**
+     * Drop a pending token so that it is never written.
+     *
+     * @param token the token
+     * @return true if the token was pending
+     */
+    public boolean cancel(final OAuth2AccessTokenEntity token) {
+        final Entry entry = token.getAuthenticationHolder() != null
+                ? pendingHolders.get(token.getAuthenticationHolder()) : null;
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entry.written || entry.saved != null || entry.token != token) {
+                return false;
+            }
+            entry.token = null;
+            forget(token);
+        }
+        return true;
+    }
+
+    /**
+     * Sets capacity.
+     *
+     * @param c the capacity
+     */
+    @Value("%{oidc.holder.writeBehind.capacity:1000}")
+    public void setCapacity(final int c) {
+        this.capacity = c;
+    }
+
+    /**
+     * Sets batch size.
+     *
+     * @param size the size
+     */
+    @Value("%{oidc.holder.writeBehind.batchSize:100}")
+    public void setBatchSize(final int size) {
+        this.batchSize = size;
+    }
+
+    /**
+     * Sets flush interval.
+     *
+     * @param interval the interval
+     */
+    @Value("%{oidc.holder.writeBehind.flushInterval:200}")
+    public void setFlushInterval(final long interval) {
+        this.flushInterval = interval;
+    }
+
+    /**
+     * Sets the maximum number of attempts to write an entry.
+     *
+     * @param attempts the attempts
+     */
+    @Value("%{oidc.holder.writeBehind.maxAttempts:3}")
+    public void setMaxAttempts(final int attempts) {
+        this.maxAttempts = attempts;
+    }
+
+    /**
+     * Writer loop: wait for a holder, gather a batch with the entries to retry and write it.
+     */
+    private void drain() {
+        final List<Entry> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                final Entry first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null && retries.isEmpty()) {
+                    continue;
+                }
+                batch.addAll(retries);
+                retries.clear();
+                if (first != null) {
+                    batch.add(first);
+                }
+                if (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+                retries.addAll(write(batch));
+            } catch (final InterruptedException e) {
+                log.debug("Authentication holder writer interrupted");
+            } catch (final RuntimeException e) {
+                log.error("Authentication holder writer failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write the batch in one transaction, falling back to one transaction per entry on failure.
+     * Only entries whose write committed are completed.
+     *
+     * @param batch the batch
+     * @return the entries that failed and are to be written again
+     */
+    private List<Entry> write(final List<Entry> batch) {
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                    for (final Entry entry : batch) {
+                        persist(entry);
+                    }
+                }
+            });
+            log.debug("Wrote {} authentication holder(s)", batch.size());
+        } catch (final RuntimeException e) {
+            log.warn("Batch insert of {} authentication holder(s) failed; retrying one by one", batch.size(), e);
+            final List<Entry> failed = new ArrayList<>();
+            for (final Entry entry : batch) {
+                reset(entry);
+                try {
+                    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                        @Override
+                        protected void doInTransactionWithoutResult(final TransactionStatus status) {
+                            persist(entry);
+                        }
+                    });
+                    complete(entry);
+                } catch (final RuntimeException ex) {
+                    reset(entry);
+                    if (++entry.attempts < maxAttempts) {
+                        log.warn("Could not write authentication holder for client {}; it will be retried",
+                                entry.holder.getClientId(), ex);
+                        failed.add(entry);
+                    } else {
+                        abandon(entry, ex);
+                    }
+                }
+            }
+            return failed;
+        }
+        for (final Entry entry : batch) {
+            complete(entry);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Insert the holder and its token, if any.
+     *
+     * @param entry the entry
+     */
+    private void persist(final Entry entry) {
+        synchronized (entry) {
+            if (entry.written || entry.saved != null) {
+                return;
+            }
+            entry.saved = holderRepository.save(entry.holder);
+            if (entry.token != null) {
+                entry.token.setAuthenticationHolder(entry.saved);
+                tokenRepository.saveAccessToken(entry.token);
+            }
+        }
+    }
+
+    /**
+     * Undo the effects of a rolled back write on the entry.
+     *
+     * @param entry the entry
+     */
+    private void reset(final Entry entry) {
+        synchronized (entry) {
+            entry.saved = null;
+            if (entry.token != null) {
+                entry.token.setAuthenticationHolder(entry.holder);
+            }
+            entry.notifyAll();
+        }
+    }
+
+    /**
+     * Stop writing the entry behind and save it directly instead. If that fails
+     * too, the entry stays pending for {@link #attach(OAuth2AccessTokenEntity)}
+     * to save on the calling thread, since its token may already have been issued.
+     *
+     * @param entry the entry
+     * @param cause the last failure
+     */
+    private void abandon(final Entry entry, final RuntimeException cause) {
+        synchronized (entry) {
+            entry.failure = cause;
+            log.warn("Could not write authentication holder for client {} behind after {} attempt(s); "
+                    + "saving it directly", entry.holder.getClientId(), entry.attempts, cause);
+            try {
+                saveNow(entry);
+            } catch (final RuntimeException e) {
+                log.error("Could not save authentication holder for client {}; it stays pending until "
+                        + "a token is saved against it", entry.holder.getClientId(), e);
+            }
+            entry.notifyAll();
+        }
+    }
+
+    /**
+     * Save the holder, unless saved already, and its queued token through the
+     * repositories, outside any batch, then complete the entry. Must be called
+     * while holding the entry's lock.
+     *
+     * @param entry the entry
+     */
+    private void saveNow(final Entry entry) {
+        if (entry.written) {
+            return;
+        }
+        if (entry.saved == null) {
+            entry.saved = holderRepository.save(entry.holder);
+        }
+        if (entry.token != null) {
+            entry.token.setAuthenticationHolder(entry.saved);
+            tokenRepository.saveAccessToken(entry.token);
+        }
+        complete(entry);
+    }
+
+    /**
+     * Mark the entry finished, publish the holder id and stop tracking it.
+     *
+     * @param entry the entry
+     */
+    private void complete(final Entry entry) {
+        synchronized (entry) {
+            entry.written = true;
+            if (entry.saved != null) {
+                entry.holder.setId(entry.saved.getId());
+            }
+            pendingHolders.remove(entry.holder);
+            if (entry.token != null) {
+                forget(entry.token);
+            }
+            entry.notifyAll();
+        }
+    }
+
+    /**
+     * Stop tracking the pending token.
+     *
+     * @param token the token
+     */
+    private void forget(final OAuth2AccessTokenEntity token) {
+        pendingTokens.remove(token.getValue(), token);
+        if (isRegistrationToken(token)) {
+            pendingRegistrationTokens.remove(token.getClient().getClientId(), token);
+        }
+    }
+
+    /**
+     * Is the token a registration token.
+     *
+     * @param token the token
+     * @return true if registration token
+     */
+    private static boolean isRegistrationToken(final OAuth2AccessTokenEntity token) {
+        return token.getClient() != null && token.getScope() != null
+                && token.getScope().contains(SystemScopeService.REGISTRATION_TOKEN_SCOPE);
+    }
+
+    /**
+     * A pending holder and the token saved against it.
+     */
+    private static final class Entry {
+        /**
+         * The Holder.
+         */
+        private final AuthenticationHolderEntity holder;
+
+        /**
+         * The Token.
+         */
+        private OAuth2AccessTokenEntity token;
+
+        /**
+         * The holder as saved by the current write, or null.
+         */
+        private AuthenticationHolderEntity saved;
+
+        /**
+         * Whether the write of the entry has committed.
+         */
+        private boolean written;
+
+        /**
+         * The number of failed attempts to write the entry.
+         */
+        private int attempts;
+
+        /**
+         * The failure that made the write behind be given up, or null.
+         */
+        private RuntimeException failure;
+
+        /**
+         * Instantiates a new Entry.
+         *
+         * @param h the holder
+         */
+        Entry(final AuthenticationHolderEntity h) {
+            this.holder = h;
+        }
+    }
+}
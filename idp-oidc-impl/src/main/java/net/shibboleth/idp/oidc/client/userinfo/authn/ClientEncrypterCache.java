@@ -0,0 +1,403 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.base.Strings;
+import com.nimbusds.jose.jwk.JWKSet;
+import net.shibboleth.idp.oidc.OIDCException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.encryption.service.JWTEncryptionAndDecryptionService;
+import org.mitre.jwt.encryption.service.impl.DefaultJWTEncryptionAndDecryptionService;
+import org.mitre.jwt.signer.service.impl.ClientKeyCacheService;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Refresh-ahead cache of client encrypters built from the client's jwks_uri.
+ * Concurrent fetches for the same uri are collapsed into a single request.
+ * Entries live for a TTL with random jitter so that clients do not expire
+ * together; they are refreshed in the background once they enter the
+ * refresh-ahead window, and are served stale for a grace period when a
+ * refresh fails. Only entries read since their last fetch are refreshed by the
+ * scheduled sweep, so the keys of clients that stopped calling age out.
+ * Clients that register their keys inline are delegated to the
+ * {@link ClientKeyCacheService}.
+ */
+@Component("clientEncrypterCache")
+public class ClientEncrypterCache {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(ClientEncrypterCache.class);
+
+    /**
+     * Cached entries keyed by jwks uri.
+     */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Fetches in flight keyed by jwks uri.
+     */
+    private final ConcurrentMap<String, ListenableFutureTask<Entry>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * Time to live of an entry in milliseconds.
+     */
+    private long timeToLive = 3600000;
+
+    /**
+     * Maximum jitter applied to the time to live in milliseconds.
+     */
+    private long jitter = 300000;
+
+    /**
+     * Length of the refresh-ahead window before expiry in milliseconds.
+     */
+    private long refreshAhead = 300000;
+
+    /**
+     * How long in milliseconds an expired entry is served when refreshing fails.
+     */
+    private long gracePeriod = 3600000;
+
+    /**
+     * The Client key cache service.
+     */
+    @Autowired
+    private ClientKeyCacheService clientKeyCacheService;
+
+    /**
+     * The Http client.
+     */
+    @Resource(name = "shibboleth.NonCachingHttpClient")
+    private HttpClient httpClient;
+
+    /**
+     * The Executor.
+     */
+    @Autowired(required = false)
+    @Qualifier("oidcKeyRefreshExecutor")
+    private AsyncListenableTaskExecutor executor;
+
+    /**
+     * Gets the encrypter for the client.
+     *
+     * @param client the client
+     * @return the encrypter, or null if none could be located
+     */
+    public JWTEncryptionAndDecryptionService getEncrypter(final ClientDetailsEntity client) {
+        if (client.getJwks() != null || Strings.isNullOrEmpty(client.getJwksUri())) {
+            return clientKeyCacheService.getEncrypter(client);
+        }
+
+        final String uri = client.getJwksUri();
+        final long now = System.currentTimeMillis();
+        final Entry entry = entries.get(uri);
+        if (entry != null) {
+            entry.lastReadAt = now;
+            if (now < entry.refreshAt) {
+                return entry.encrypter;
+            }
+            if (now < entry.staleUntil) {
+                if (now >= entry.expiresAt) {
+                    log.warn("Keys of {} expired at {}; serving them stale while refreshing", uri, entry.expiresAt);
+                }
+                refreshInBackground(uri);
+                return entry.encrypter;
+            }
+        }
+
+        try {
+            final Entry fetched = fetch(uri).get();
+            fetched.lastReadAt = System.currentTimeMillis();
+            return fetched.encrypter;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OIDCException("Interrupted while fetching keys from " + uri, e);
+        } catch (final ExecutionException e) {
+            log.error("Could not fetch keys of client {} from {}", client.getClientId(), uri, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Refresh every entry that has entered its refresh-ahead window and was read
+     * since it was fetched, and drop the ones past their grace period or expired
+     * without being read. Run on a schedule so that clients calling less often
+     * than the refresh-ahead window also find fresh keys.
+     */
+    public void refreshDue() {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+            final Entry entry = e.getValue();
+            final boolean read = entry.lastReadAt >= entry.fetchedAt;
+            if (now >= entry.staleUntil) {
+                log.debug("Dropping keys of {}; the grace period has passed", e.getKey());
+                entries.remove(e.getKey(), entry);
+            } else if (!read && now >= entry.expiresAt) {
+                log.debug("Dropping keys of {}; they expired without being read", e.getKey());
+                entries.remove(e.getKey(), entry);
+            } else if (read && now >= entry.refreshAt) {
+                refreshInBackground(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Drop the entry for the jwks uri.
+     *
+     * @param jwksUri the jwks uri
+     */
+    public void invalidate(final String jwksUri) {
+        entries.remove(jwksUri);
+    }
+
+    /**
+     * Sets time to live.
+     *
+     * @param ttl the ttl
+     */
+    @Value("%{oidc.jwks.cache.ttl:3600000}")
+    public void setTimeToLive(final long ttl) {
+        this.timeToLive = ttl;
+    }
+
+    /**
+     * Sets jitter.
+     *
+     * @param j the jitter
+     */
+    @Value("%{oidc.jwks.cache.jitter:300000}")
+    public void setJitter(final long j) {
+        this.jitter = j;
+    }
+
+    /**
+     * Sets refresh ahead.
+     *
+     * @param window the window
+     */
+    @Value("%{oidc.jwks.cache.refreshAhead:300000}")
+    public void setRefreshAhead(final long window) {
+        this.refreshAhead = window;
+    }
+
+    /**
+     * Sets grace period.
+     *
+     * @param grace the grace
+     */
+    @Value("%{oidc.jwks.cache.gracePeriod:3600000}")
+    public void setGracePeriod(final long grace) {
+        this.gracePeriod = grace;
+    }
+
+    /**
+     * Sets executor.
+     *
+     * @param exec the exec
+     */
+    public void setExecutor(final AsyncListenableTaskExecutor exec) {
+        this.executor = exec;
+    }
+
+    /**
+     * Sets http client.
+     *
+     * @param client the client
+     */
+    public void setHttpClient(final HttpClient client) {
+        this.httpClient = client;
+    }
+
+    /**
+     * Start a fetch on the refresh executor, unless one is in flight already.
+     *
+     * @param uri the uri
+     */
+    private void refreshInBackground(final String uri) {
+        if (executor == null || inflight.containsKey(uri)) {
+            return;
+        }
+        final ListenableFutureTask<Entry> task = newFetchTask(uri);
+        if (inflight.putIfAbsent(uri, task) != null) {
+            return;
+        }
+        try {
+            executor.execute(task);
+            log.debug("Refreshing keys of {} in the background", uri);
+        } catch (final TaskRejectedException e) {
+            inflight.remove(uri, task);
+            log.debug("Refresh executor is saturated; keys of {} will be refreshed later", uri);
+        }
+    }
+
+    /**
+     * Fetch the keys on the calling thread, or join the fetch in flight.
+     *
+     * @param uri the uri
+     * @return the future entry
+     */
+    private ListenableFuture<Entry> fetch(final String uri) {
+        final ListenableFutureTask<Entry> task = newFetchTask(uri);
+        final ListenableFutureTask<Entry> existing = inflight.putIfAbsent(uri, task);
+        if (existing != null) {
+            log.debug("Joining the fetch in flight for {}", uri);
+            return existing;
+        }
+        task.run();
+        return task;
+    }
+
+    /**
+     * Create the task that fetches the keys, caches the result and clears the in-flight marker.
+     *
+     * @param uri the uri
+     * @return the task
+     */
+    private ListenableFutureTask<Entry> newFetchTask(final String uri) {
+        final ListenableFutureTask<Entry> task = new ListenableFutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                return load(uri);
+            }
+        });
+        task.addCallback(new ListenableFutureCallback<Entry>() {
+            @Override
+            public void onSuccess(final Entry result) {
+                entries.put(uri, result);
+                inflight.remove(uri, task);
+            }
+
+            @Override
+            public void onFailure(final Throwable ex) {
+                inflight.remove(uri, task);
+                log.warn("Failed to fetch keys from {}: {}", uri, ex.getMessage());
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Fetch and parse the key set, and build the encrypter.
+     *
+     * @param uri the uri
+     * @return the entry
+     * @throws Exception if the keys cannot be fetched or parsed
+     */
+    private Entry load(final String uri) throws Exception {
+        final HttpGet get = new HttpGet(uri);
+        try {
+            final HttpResponse response = httpClient.execute(get);
+            final int status = response.getStatusLine().getStatusCode();
+            final String body = response.getEntity() != null
+                    ? EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+            if (status != 200 || Strings.isNullOrEmpty(body)) {
+                throw new OIDCException("Unexpected response " + status + " from " + uri);
+            }
+            final JWKSet jwkSet = JWKSet.parse(body);
+            final JWTEncryptionAndDecryptionService encrypter =
+                    new DefaultJWTEncryptionAndDecryptionService(new JWKSetKeyStore(jwkSet));
+
+            final long now = System.currentTimeMillis();
+            final long ttl = Math.max(0, timeToLive + (jitter > 0
+                    ? ThreadLocalRandom.current().nextLong(-jitter, jitter + 1) : 0));
+            final long expiresAt = now + ttl;
+            log.debug("Fetched {} key(s) from {}; they expire in {} ms", jwkSet.getKeys().size(), uri, ttl);
+            return new Entry(encrypter, now, Math.max(now, expiresAt - refreshAhead), expiresAt,
+                    expiresAt + gracePeriod);
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Encrypter, its refresh and expiry times, and when it was last read.
+     */
+    private static final class Entry {
+        /**
+         * The Encrypter.
+         */
+        private final JWTEncryptionAndDecryptionService encrypter;
+
+        /**
+         * When the keys were fetched.
+         */
+        private final long fetchedAt;
+
+        /**
+         * When the entry becomes due for refresh.
+         */
+        private final long refreshAt;
+
+        /**
+         * When the entry expires.
+         */
+        private final long expiresAt;
+
+        /**
+         * When the entry may no longer be served stale.
+         */
+        private final long staleUntil;
+
+        /**
+         * When the entry was last served.
+         */
+        private volatile long lastReadAt;
+
+        /**
+         * Instantiates a new Entry.
+         *
+         * @param enc     the encrypter
+         * @param fetched the fetch time
+         * @param refresh the refresh time
+         * @param expires the expiry time
+         * @param stale   the end of the grace period
+         */
+        Entry(final JWTEncryptionAndDecryptionService enc, final long fetched, final long refresh,
+              final long expires, final long stale) {
+            this.encrypter = enc;
+            this.fetchedAt = fetched;
+            this.refreshAt = refresh;
+            this.expiresAt = expires;
+            this.staleUntil = stale;
+        }
+    }
+}
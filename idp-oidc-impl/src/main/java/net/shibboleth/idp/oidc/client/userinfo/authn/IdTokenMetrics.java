@@ -0,0 +1,311 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Objects;
+import com.nimbusds.jose.Algorithm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stage latency timers for id token creation, tagged by signing algorithm
+ * and by whether the token is encrypted. Timers are registered in the IdP
+ * metric registry under {@value #PREFIX}, so they are reported by the
+ * admin metrics flow as JSON, and are also published over JMX.
+ */
+@Component("idTokenMetrics")
+public class IdTokenMetrics {
+    /**
+     * Prefix of all timer names.
+     */
+    public static final String PREFIX = "net.shibboleth.idp.oidc.idtoken";
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(IdTokenMetrics.class);
+
+    /**
+     * Timers indexed by stage, keyed by tag.
+     */
+    private final ConcurrentMap<Tag, Timer[]> timers = new ConcurrentHashMap<>();
+
+    /**
+     * The Metric registry.
+     */
+    @Autowired(required = false)
+    @Qualifier("shibboleth.metrics.MetricRegistry")
+    private MetricRegistry metricRegistry;
+
+    /**
+     * Whether the timers are published over JMX.
+     */
+    private boolean jmxEnabled = true;
+
+    /**
+     * The Jmx reporter.
+     */
+    private JmxReporter jmxReporter;
+
+    /**
+     * The stages of id token creation.
+     */
+    public enum Stage {
+        /** Parsing the authentication time. */
+        AUTH_TIME,
+        /** Extracting acr and amr. */
+        ACR_AMR,
+        /** Computing the expiration. */
+        EXPIRATION,
+        /** Issuer, subject, audience and jti. */
+        CLAIMS,
+        /** Copying the nonce. */
+        NONCE,
+        /** Hashing the access token. */
+        AT_HASH,
+        /** Signing or encrypting the token. */
+        CRYPTO,
+        /** The whole of id token creation. */
+        TOTAL
+    }
+
+    /**
+     * Initialize the registry and start the jmx reporter.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (metricRegistry == null) {
+            log.debug("No IdP metric registry is available; id token timers are kept privately");
+            metricRegistry = new MetricRegistry();
+        }
+        if (jmxEnabled) {
+            jmxReporter = JmxReporter.forRegistry(metricRegistry)
+                    .filter(new MetricFilter() {
+                        @Override
+                        public boolean matches(final String name, final Metric metric) {
+                            return name.startsWith(PREFIX);
+                        }
+                    })
+                    .convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .build();
+            jmxReporter.start();
+        }
+    }
+
+    /**
+     * Stop the jmx reporter.
+     */
+    @PreDestroy
+    public void destroy() {
+        if (jmxReporter != null) {
+            jmxReporter.stop();
+        }
+    }
+
+    /**
+     * Start timing the creation of an id token.
+     *
+     * @param alg       the signing alg
+     * @param encrypted whether the token is encrypted
+     * @return the stopwatch
+     */
+    public Stopwatch start(final Algorithm alg, final boolean encrypted) {
+        return new Stopwatch(getTimers(alg, encrypted));
+    }
+
+    /**
+     * Sets metric registry.
+     *
+     * @param registry the registry
+     */
+    public void setMetricRegistry(final MetricRegistry registry) {
+        this.metricRegistry = registry;
+    }
+
+    /**
+     * Sets whether the timers are published over jmx.
+     *
+     * @param enabled the enabled
+     */
+    @Value("%{oidc.metrics.jmx.enabled:true}")
+    public void setJmxEnabled(final boolean enabled) {
+        this.jmxEnabled = enabled;
+    }
+
+    /**
+     * Gets the timers of the tag, registering them on first use.
+     *
+     * @param alg       the alg
+     * @param encrypted the encrypted
+     * @return the timers indexed by stage
+     */
+    private Timer[] getTimers(final Algorithm alg, final boolean encrypted) {
+        final Tag tag = new Tag(alg != null ? alg.getName() : Algorithm.NONE.getName(), encrypted);
+        Timer[] result = timers.get(tag);
+        if (result == null) {
+            final Stage[] stages = Stage.values();
+            result = new Timer[stages.length];
+            for (final Stage stage : stages) {
+                result[stage.ordinal()] = metricRegistry.timer(MetricRegistry.name(PREFIX,
+                        stage.name().toLowerCase(), tag.alg, tag.encrypted ? "encrypted" : "plain"));
+            }
+            final Timer[] existing = timers.putIfAbsent(tag, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Times consecutive stages of a single id token. Each stage runs from its
+     * {@link #begin(Stage)} to the next one, or to {@link #stop()}; calling
+     * {@link #stop()} in a finally block records the stage that threw as well.
+     */
+    public static final class Stopwatch {
+        /**
+         * The Timers.
+         */
+        private final Timer[] timers;
+
+        /**
+         * When timing started.
+         */
+        private final long start;
+
+        /**
+         * When the current stage began.
+         */
+        private long last;
+
+        /**
+         * The current stage, or null if none has begun or timing has stopped.
+         */
+        private Stage current;
+
+        /**
+         * Whether timing has stopped.
+         */
+        private boolean stopped;
+
+        /**
+         * Instantiates a new Stopwatch.
+         *
+         * @param t the timers
+         */
+        Stopwatch(final Timer[] t) {
+            this.timers = t;
+            this.start = System.nanoTime();
+            this.last = this.start;
+        }
+
+        /**
+         * Record the current stage, if any, and begin the given one.
+         *
+         * @param stage the stage
+         */
+        public void begin(final Stage stage) {
+            final long now = System.nanoTime();
+            record(now);
+            current = stage;
+            last = now;
+        }
+
+        /**
+         * Record the current stage and the total time. Only the first call has any effect.
+         */
+        public void stop() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            final long now = System.nanoTime();
+            record(now);
+            current = null;
+            timers[Stage.TOTAL.ordinal()].update(now - start, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Record the time since the current stage began against it.
+         *
+         * @param now the current time
+         */
+        private void record(final long now) {
+            if (current != null) {
+                timers[current.ordinal()].update(now - last, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Algorithm and encryption tag.
+     */
+    private static final class Tag {
+        /**
+         * The Alg.
+         */
+        private final String alg;
+
+        /**
+         * The Encrypted.
+         */
+        private final boolean encrypted;
+
+        /**
+         * Instantiates a new Tag.
+         *
+         * @param a the alg
+         * @param e the encrypted
+         */
+        Tag(final String a, final boolean e) {
+            this.alg = a;
+            this.encrypted = e;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Tag)) {
+                return false;
+            }
+            final Tag that = (Tag) o;
+            return encrypted == that.encrypted && alg.equals(that.alg);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(alg, encrypted);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.MACSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.OctetSequenceKey;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jwt.SignedJWT;
+import net.shibboleth.idp.oidc.OIDCException;
+import org.mitre.jose.keystore.JWKSetKeyStore;
+import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
+import org.mitre.jwt.signer.service.impl.SymmetricKeyJWTValidatorCacheService;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of ready-to-use JWS signers and immutable JWS header templates.
+ * Server signers are keyed by (algorithm, key id) and are built from the
+ * default JWK keystore; client signers are keyed by client id and are rebuilt
+ * when the client secret changes. All server entries are dropped when
+ * the keystore publishes a new JWK set.
+ */
+@Component("jwtSignerRegistry")
+public class JWTSignerRegistry {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(JWTSignerRegistry.class);
+
+    /**
+     * Header templates keyed by algorithm and key id.
+     */
+    private final ConcurrentMap<SignerKey, JWSHeader> headers = new ConcurrentHashMap<>();
+
+    /**
+     * Server signers keyed by algorithm and key id.
+     */
+    private final ConcurrentMap<SignerKey, JWSSigner> serverSigners = new ConcurrentHashMap<>();
+
+    /**
+     * Client secret signers keyed by client id.
+     */
+    private final ConcurrentMap<String, ClientSigner> clientSigners = new ConcurrentHashMap<>();
+
+    /**
+     * The JWK set the server signers were built from.
+     */
+    private volatile JWKSet observedJwkSet;
+
+    /**
+     * The Jwt service.
+     */
+    @Autowired
+    private JWTSigningAndValidationService jwtService;
+
+    /**
+     * The Symmetric cache service.
+     */
+    @Autowired
+    private SymmetricKeyJWTValidatorCacheService symmetricCacheService;
+
+    /**
+     * The key store backing the default signing service.
+     */
+    @Resource(name = "defaultKeyStore")
+    private JWKSetKeyStore keyStore;
+
+    /**
+     * Gets the immutable header template for the given algorithm and key id.
+     *
+     * @param alg the signing alg
+     * @param kid the key id
+     * @return the header
+     */
+    public JWSHeader getHeader(final JWSAlgorithm alg, final String kid) {
+        final SignerKey key = new SignerKey(alg, kid);
+        JWSHeader header = headers.get(key);
+        if (header == null) {
+            header = new JWSHeader.Builder(alg).keyID(kid).build();
+            final JWSHeader existing = headers.putIfAbsent(key, header);
+            if (existing != null) {
+                header = existing;
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Sign the jwt with the server key identified by the header.
+     * Falls back onto the default signing service if no signer
+     * could be built for the algorithm and key id.
+     *
+     * @param jwt the jwt
+     */
+    public void signWithServerKey(final SignedJWT jwt) {
+        final JWSHeader header = jwt.getHeader();
+        final JWSSigner signer = getServerSigner(header.getAlgorithm(), header.getKeyID());
+        if (signer == null) {
+            log.debug("No cached signer for {}/{}; using the default signer service",
+                    header.getAlgorithm(), header.getKeyID());
+            jwtService.signJwt(jwt);
+            return;
+        }
+        sign(jwt, signer);
+    }
+
+    /**
+     * Sign the jwt with the client secret. Falls back onto the symmetric
+     * validator cache if the secret cannot produce a signer.
+     *
+     * @param client the client
+     * @param jwt    the jwt
+     */
+    public void signWithClientSecret(final ClientDetailsEntity client, final SignedJWT jwt) {
+        final JWSSigner signer = getClientSigner(client, jwt.getHeader().getAlgorithm());
+        if (signer == null) {
+            log.debug("No cached signer for client {}; using the symmetric validator cache", client.getClientId());
+            final JWTSigningAndValidationService svc = symmetricCacheService.getSymmetricValidtor(client);
+            if (svc == null) {
+                throw new OIDCException("Could not locate a symmetric signer for client " + client.getClientId());
+            }
+            svc.signJwt(jwt);
+            return;
+        }
+        sign(jwt, signer);
+    }
+
+    /**
+     * Gets server signer.
+     *
+     * @param alg the alg
+     * @param kid the kid
+     * @return the server signer, or null
+     */
+    public JWSSigner getServerSigner(final JWSAlgorithm alg, final String kid) {
+        final JWKSet current = keyStore != null ? keyStore.getJwkSet() : null;
+        if (current == null || Strings.isNullOrEmpty(kid)) {
+            return null;
+        }
+        if (current != observedJwkSet) {
+            log.debug("JWK set has changed; dropping {} cached server signer(s)", serverSigners.size());
+            serverSigners.clear();
+            observedJwkSet = current;
+        }
+
+        final SignerKey key = new SignerKey(alg, kid);
+        JWSSigner signer = serverSigners.get(key);
+        if (signer == null) {
+            signer = buildServerSigner(current, alg, kid);
+            if (signer != null) {
+                final JWSSigner existing = serverSigners.putIfAbsent(key, signer);
+                if (existing != null) {
+                    signer = existing;
+                }
+            }
+        }
+        return signer;
+    }
+
+    /**
+     * Gets client signer.
+     *
+     * @param client the client
+     * @param alg    the alg
+     * @return the client signer, or null
+     */
+    public JWSSigner getClientSigner(final ClientDetailsEntity client, final JWSAlgorithm alg) {
+        final String secret = client.getClientSecret();
+        if (Strings.isNullOrEmpty(secret)) {
+            return null;
+        }
+        ClientSigner entry = clientSigners.get(client.getClientId());
+        if (entry == null || !entry.secret.equals(secret)) {
+            try {
+                entry = new ClientSigner(secret, new MACSigner(secret.getBytes(StandardCharsets.UTF_8)));
+                clientSigners.put(client.getClientId(), entry);
+                log.debug("Cached symmetric signer for client {}", client.getClientId());
+            } catch (final JOSEException e) {
+                log.warn("Could not build symmetric signer for client {}: {}", client.getClientId(), e.getMessage());
+                clientSigners.remove(client.getClientId());
+                return null;
+            }
+        }
+        return entry.signer.supportedJWSAlgorithms().contains(alg) ? entry.signer : null;
+    }
+
+    /**
+     * Drop the cached signer of the given client.
+     *
+     * @param clientId the client id
+     */
+    public void invalidateClient(final String clientId) {
+        clientSigners.remove(clientId);
+    }
+
+    /**
+     * Drop all cached signers.
+     */
+    public void invalidateAll() {
+        serverSigners.clear();
+        clientSigners.clear();
+        observedJwkSet = null;
+    }
+
+    /**
+     * Sets jwt service.
+     *
+     * @param svc the svc
+     */
+    public void setJwtService(final JWTSigningAndValidationService svc) {
+        this.jwtService = svc;
+    }
+
+    /**
+     * Sets symmetric cache service.
+     *
+     * @param svc the svc
+     */
+    public void setSymmetricCacheService(final SymmetricKeyJWTValidatorCacheService svc) {
+        this.symmetricCacheService = svc;
+    }
+
+    /**
+     * Sets key store.
+     *
+     * @param store the store
+     */
+    public void setKeyStore(final JWKSetKeyStore store) {
+        this.keyStore = store;
+    }
+
+    /**
+     * Sign the jwt.
+     *
+     * @param jwt    the jwt
+     * @param signer the signer
+     */
+    private void sign(final SignedJWT jwt, final JWSSigner signer) {
+        try {
+            jwt.sign(signer);
+        } catch (final JOSEException e) {
+            log.error("Failed to sign JWT with {}", jwt.getHeader().getAlgorithm(), e);
+            throw new OIDCException(e);
+        }
+    }
+
+    /**
+     * Build server signer.
+     *
+     * @param jwkSet the jwk set
+     * @param alg    the alg
+     * @param kid    the kid
+     * @return the signer, or null if the key cannot sign with the alg
+     */
+    private JWSSigner buildServerSigner(final JWKSet jwkSet, final JWSAlgorithm alg, final String kid) {
+        final JWK jwk = jwkSet.getKeyByKeyId(kid);
+        if (jwk == null || !jwk.isPrivate()) {
+            log.debug("No private key found for key id {}", kid);
+            return null;
+        }
+        try {
+            final JWSSigner signer;
+            if (jwk instanceof RSAKey) {
+                signer = new RSASSASigner((RSAKey) jwk);
+            } else if (jwk instanceof ECKey) {
+                signer = new ECDSASigner((ECKey) jwk);
+            } else if (jwk instanceof OctetSequenceKey) {
+                signer = new MACSigner((OctetSequenceKey) jwk);
+            } else {
+                log.debug("Unsupported key type {} for key id {}", jwk.getKeyType(), kid);
+                return null;
+            }
+            if (!signer.supportedJWSAlgorithms().contains(alg)) {
+                log.debug("Key id {} cannot sign with {}", kid, alg);
+                return null;
+            }
+            log.debug("Cached server signer for {}/{}", alg, kid);
+            return signer;
+        } catch (final JOSEException e) {
+            log.warn("Could not build signer for key id {}: {}", kid, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Algorithm and key id pair.
+     */
+    private static final class SignerKey {
+        /**
+         * The Alg.
+         */
+        private final JWSAlgorithm alg;
+
+        /**
+         * The Kid.
+         */
+        private final String kid;
+
+        /**
+         * Instantiates a new Signer key.
+         *
+         * @param algorithm the algorithm
+         * @param keyId     the key id
+         */
+        SignerKey(final JWSAlgorithm algorithm, final String keyId) {
+            this.alg = algorithm;
+            this.kid = keyId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SignerKey)) {
+                return false;
+            }
+            final SignerKey that = (SignerKey) o;
+            return alg.equals(that.alg) && Objects.equal(kid, that.kid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(alg, kid);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("alg", alg).add("kid", kid).toString();
+        }
+    }
+
+    /**
+     * Client secret and the signer built from it.
+     */
+    private static final class ClientSigner {
+        /**
+         * The Secret.
+         */
+        private final String secret;
+
+        /**
+         * The Signer.
+         */
+        private final JWSSigner signer;
+
+        /**
+         * Instantiates a new Client signer.
+         *
+         * @param s   the secret
+         * @param sig the signer
+         */
+        ClientSigner(final String s, final JWSSigner sig) {
+            this.secret = s;
+            this.signer = sig;
+        }
+    }
+}
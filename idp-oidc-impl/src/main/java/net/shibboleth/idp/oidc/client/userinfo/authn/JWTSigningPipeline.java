@@ -0,0 +1,179 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.nimbusds.jwt.EncryptedJWT;
+import com.nimbusds.jwt.SignedJWT;
+import net.shibboleth.idp.oidc.OIDCException;
+import org.mitre.jwt.encryption.service.JWTEncryptionAndDecryptionService;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureTask;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Runs JWT signing and encryption on a dedicated, bounded executor so that
+ * private-key operations are capped at the size of that pool. Callers receive
+ * a future and may keep working (claim assembly, persistence) until they
+ * need the signed token. When no executor is configured, work runs inline
+ * on the calling thread.
+ */
+@Component("jwtSigningPipeline")
+public class JWTSigningPipeline {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(JWTSigningPipeline.class);
+
+    /**
+     * The Signer registry.
+     */
+    @Autowired
+    private JWTSignerRegistry signerRegistry;
+
+    /**
+     * The Executor.
+     */
+    @Autowired(required = false)
+    @Qualifier("oidcSigningExecutor")
+    private AsyncListenableTaskExecutor executor;
+
+    /**
+     * Sign the jwt with the server key identified by its header.
+     *
+     * @param jwt the jwt
+     * @return the future holding the signed jwt
+     */
+    public ListenableFuture<SignedJWT> signWithServerKey(final SignedJWT jwt) {
+        return submit(new Callable<SignedJWT>() {
+            @Override
+            public SignedJWT call() throws Exception {
+                signerRegistry.signWithServerKey(jwt);
+                return jwt;
+            }
+        });
+    }
+
+    /**
+     * Sign the jwt with the client secret.
+     *
+     * @param client the client
+     * @param jwt    the jwt
+     * @return the future holding the signed jwt
+     */
+    public ListenableFuture<SignedJWT> signWithClientSecret(final ClientDetailsEntity client, final SignedJWT jwt) {
+        return submit(new Callable<SignedJWT>() {
+            @Override
+            public SignedJWT call() throws Exception {
+                signerRegistry.signWithClientSecret(client, jwt);
+                return jwt;
+            }
+        });
+    }
+
+    /**
+     * Encrypt the jwt.
+     *
+     * @param encrypter the encrypter
+     * @param jwt       the jwt
+     * @return the future holding the encrypted jwt
+     */
+    public ListenableFuture<EncryptedJWT> encrypt(final JWTEncryptionAndDecryptionService encrypter,
+                                                  final EncryptedJWT jwt) {
+        return submit(new Callable<EncryptedJWT>() {
+            @Override
+            public EncryptedJWT call() throws Exception {
+                encrypter.encryptJwt(jwt);
+                return jwt;
+            }
+        });
+    }
+
+    /**
+     * Wait for the future and unwrap its failure.
+     *
+     * @param <T>    the type parameter
+     * @param future the future
+     * @return the result
+     */
+    public <T> T await(final ListenableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OIDCException("Interrupted while waiting for the signing pipeline", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof OIDCException) {
+                throw (OIDCException) cause;
+            }
+            throw new OIDCException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Gets executor.
+     *
+     * @return the executor
+     */
+    public AsyncListenableTaskExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets executor.
+     *
+     * @param exec the exec
+     */
+    public void setExecutor(final AsyncListenableTaskExecutor exec) {
+        this.executor = exec;
+    }
+
+    /**
+     * Sets signer registry.
+     *
+     * @param registry the registry
+     */
+    public void setSignerRegistry(final JWTSignerRegistry registry) {
+        this.signerRegistry = registry;
+    }
+
+    /**
+     * Submit the task to the executor, or run it inline if none is configured.
+     *
+     * @param <T>  the type parameter
+     * @param task the task
+     * @return the future
+     */
+    private <T> ListenableFuture<T> submit(final Callable<T> task) {
+        if (executor == null) {
+            final ListenableFutureTask<T> future = new ListenableFutureTask<>(task);
+            future.run();
+            return future;
+        }
+        log.trace("Submitting signing task to the signing executor");
+        return executor.submitListenable(task);
+    }
+}
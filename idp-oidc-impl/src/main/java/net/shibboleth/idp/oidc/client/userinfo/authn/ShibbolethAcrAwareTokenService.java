@@ -34,10 +34,9 @@ import com.nimbusds.jwt.SignedJWT;
 import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationClassRefAuthority;
 import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationMethodRefAuthority;
 import net.shibboleth.idp.oidc.config.OIDCConstants;
+import net.shibboleth.idp.oidc.util.IdentifierGenerator;
 import org.mitre.jwt.encryption.service.JWTEncryptionAndDecryptionService;
 import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
-import org.mitre.jwt.signer.service.impl.ClientKeyCacheService;
-import org.mitre.jwt.signer.service.impl.SymmetricKeyJWTValidatorCacheService;
 import org.mitre.oauth2.model.AuthenticationHolderEntity;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
@@ -57,12 +56,12 @@ import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.OAuth2Request;
 import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
 
 import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
 
 /**
  * The type Shibboleth acr aware token service.
@@ -97,19 +96,43 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
      * The Encrypters.
      */
     @Autowired
-    private ClientKeyCacheService encrypters;
+    private ClientEncrypterCache encrypters;
 
     /**
-     * The Symmetric cache service.
+     * The Token service.
      */
     @Autowired
-    private SymmetricKeyJWTValidatorCacheService symmetricCacheService;
+    private OAuth2TokenEntityService tokenService;
 
     /**
-     * The Token service.
+     * The Signer registry.
      */
     @Autowired
-    private OAuth2TokenEntityService tokenService;
+    private JWTSignerRegistry signerRegistry;
+
+    /**
+     * The Signing pipeline.
+     */
+    @Autowired
+    private JWTSigningPipeline signingPipeline;
+
+    /**
+     * The Id token metrics.
+     */
+    @Autowired
+    private IdTokenMetrics idTokenMetrics;
+
+    /**
+     * The Holder write behind.
+     */
+    @Autowired
+    private AuthenticationHolderWriteBehind holderWriteBehind;
+
+    /**
+     * The Id generator.
+     */
+    @Autowired
+    private IdentifierGenerator idGenerator;
 
     @Override
     public JWT createIdToken(final ClientDetailsEntity client, final OAuth2Request request,
@@ -122,53 +145,66 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
             signingAlg = client.getIdTokenSignedResponseAlg();
         }
 
-        final JWTClaimsSet.Builder idClaims = new JWTClaimsSet.Builder();
+        final boolean encrypted = client.getIdTokenEncryptedResponseAlg() != null
+                && !client.getIdTokenEncryptedResponseAlg().equals(Algorithm.NONE)
+                && client.getIdTokenEncryptedResponseEnc() != null
+                && !client.getIdTokenEncryptedResponseEnc().equals(Algorithm.NONE)
+                && (!Strings.isNullOrEmpty(client.getJwksUri()) || client.getJwks() != null);
+        final IdTokenMetrics.Stopwatch timing = idTokenMetrics.start(signingAlg, encrypted);
 
-        log.debug("Request {} extension {}", ConnectRequestParameters.MAX_AGE, request.getExtensions().get(ConnectRequestParameters.MAX_AGE));
-        log.debug("Request {} extension {}", OIDCConstants.ID_TOKEN, request.getExtensions().get(OIDCConstants.ID_TOKEN));
-        log.debug("Client require authN time {}", client.getRequireAuthTime());
+        try {
+            final JWTClaimsSet.Builder idClaims = new JWTClaimsSet.Builder();
 
-        calculateAuthTimeClaim(request, idClaims);
+            log.debug("Request {} extension {}", ConnectRequestParameters.MAX_AGE, request.getExtensions().get(ConnectRequestParameters.MAX_AGE));
+            log.debug("Request {} extension {}", OIDCConstants.ID_TOKEN, request.getExtensions().get(OIDCConstants.ID_TOKEN));
+            log.debug("Client require authN time {}", client.getRequireAuthTime());
 
-        idClaims.issueTime(issueTime);
+            timing.begin(IdTokenMetrics.Stage.AUTH_TIME);
+            calculateAuthTimeClaim(request, idClaims);
 
-        calculateAmrAndAcrClaims(accessToken, idClaims);
-        calculateExpirationClaim(client, idClaims);
+            idClaims.issueTime(issueTime);
 
-        idClaims.issuer(configBean.getIssuer());
-        log.debug("issuer is set to {}", configBean.getIssuer());
+            timing.begin(IdTokenMetrics.Stage.ACR_AMR);
+            calculateAmrAndAcrClaims(request, accessToken, idClaims);
+            timing.begin(IdTokenMetrics.Stage.EXPIRATION);
+            calculateExpirationClaim(client, idClaims);
 
-        idClaims.subject(sub);
-        log.debug("sub is set to {}", sub);
+            timing.begin(IdTokenMetrics.Stage.CLAIMS);
+            idClaims.issuer(configBean.getIssuer());
+            log.debug("issuer is set to {}", configBean.getIssuer());
 
-        idClaims.audience(Lists.newArrayList(client.getClientId()));
-        log.debug("audience is set to {}", client.getClientId());
+            idClaims.subject(sub);
+            log.debug("sub is set to {}", sub);
 
-        final String jwtId = UUID.randomUUID().toString();
-        idClaims.jwtID(jwtId);
-        log.debug("JWT id is set to {}", jwtId);
-        
-        calculateNonceClaim(request, idClaims);
+            idClaims.audience(Lists.newArrayList(client.getClientId()));
+            log.debug("audience is set to {}", client.getClientId());
 
-        final Set<String> responseTypes = request.getResponseTypes();
+            final String jwtId = idGenerator.generateIdentifier();
+            idClaims.jwtID(jwtId);
+            log.debug("JWT id is set to {}", jwtId);
 
-        calculateAtHashClaim(accessToken, signingAlg, idClaims, responseTypes);
+            timing.begin(IdTokenMetrics.Stage.NONCE);
+            calculateNonceClaim(request, idClaims);
 
-        JWT idToken = null;
-        if (client.getIdTokenEncryptedResponseAlg() != null
-                && !client.getIdTokenEncryptedResponseAlg().equals(Algorithm.NONE)
-                && client.getIdTokenEncryptedResponseEnc() != null
-                && !client.getIdTokenEncryptedResponseEnc().equals(Algorithm.NONE)
-                && (!Strings.isNullOrEmpty(client.getJwksUri()) || client.getJwks() != null)) {
+            final Set<String> responseTypes = request.getResponseTypes();
 
-            idToken = encryptIdToken(client, idClaims);
-        } else {
-            idToken = signIdToken(client, signingAlg, idClaims);
-        }
+            timing.begin(IdTokenMetrics.Stage.AT_HASH);
+            calculateAtHashClaim(accessToken, signingAlg, idClaims, responseTypes);
 
-        log.debug("Mapping the idToken to the authentication of client {}",
-                accessToken.getAuthenticationHolder().getClientId());
-        return idToken;
+            timing.begin(IdTokenMetrics.Stage.CRYPTO);
+            JWT idToken = null;
+            if (encrypted) {
+                idToken = encryptIdToken(client, idClaims);
+            } else {
+                idToken = signIdToken(client, signingAlg, idClaims);
+            }
+
+            log.debug("Mapping the idToken to the authentication of client {}",
+                    accessToken.getAuthenticationHolder().getClientId());
+            return idToken;
+        } finally {
+            timing.stop();
+        }
         
 //        idTokenEntity.setAuthenticationHolder(accessToken.getAuthenticationHolder());
 //
@@ -221,20 +257,13 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
      */
     private JWT signIdTokenForHs256Hs384Hs512(final ClientDetailsEntity client,
                                               final JWSAlgorithm signingAlg, final JWTClaimsSet.Builder idClaims) {
-        final JWT idToken;
         log.debug("Client {} required a signed idToken with signing alg of {}",
                 client.getClientId(), signingAlg);
-        final JWSHeader header = new JWSHeader(signingAlg, null, null,
-                null, null, null, null, null, null, null,
-                jwtService.getDefaultSignerKeyId(),
-                null, null);
-        idToken = new SignedJWT(header, idClaims.build());
-
-        final JWTSigningAndValidationService signer = symmetricCacheService.getSymmetricValidtor(client);
+        final JWSHeader header = signerRegistry.getHeader(signingAlg, jwtService.getDefaultSignerKeyId());
+        final SignedJWT idToken = new SignedJWT(header, idClaims.build());
 
         // sign it with the client's secret
-        signer.signJwt((SignedJWT) idToken);
-        return idToken;
+        return signingPipeline.await(signingPipeline.signWithClientSecret(client, idToken));
     }
 
     /**
@@ -259,8 +288,7 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
         log.debug("Encrypting idToken with response alg {} and response encoding {} and claims {}",
                 client.getIdTokenEncryptedResponseAlg(),
                 client.getIdTokenEncryptedResponseEnc(), claims.getClaims().keySet());
-        encrypter.encryptJwt(idToken);
-        return idToken;
+        return signingPipeline.await(signingPipeline.encrypt(encrypter, idToken));
     }
 
     /**
@@ -338,34 +366,46 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
     private JWT signIdTokenWithDefaultService(final ClientDetailsEntity client,
                                               final JWSAlgorithm signingAlg,
                                               final JWTClaimsSet.Builder idClaims) {
-        final JWT idToken;
         idClaims.claim(OIDCConstants.KID, jwtService.getDefaultSignerKeyId());
         log.debug("Client {} required a signed idToken with signing alg of {} and kid {}",
                 client.getClientId(), signingAlg, jwtService.getDefaultSignerKeyId());
 
-        final JWSHeader header = new JWSHeader(signingAlg, null,
-                null, null, null, null, null, null, null, null,
-                jwtService.getDefaultSignerKeyId(),
-                null, null);
-
-        idToken = new SignedJWT(header, idClaims.build());
+        final JWSHeader header = signerRegistry.getHeader(signingAlg, jwtService.getDefaultSignerKeyId());
+        final SignedJWT idToken = new SignedJWT(header, idClaims.build());
 
         log.debug("Using the default signer service to sign the idToken. Default signing alg is {}",
                 jwtService.getDefaultSigningAlgorithm());
 
         // sign it with the server's key
-        jwtService.signJwt((SignedJWT) idToken);
-        return idToken;
+        return signingPipeline.await(signingPipeline.signWithServerKey(idToken));
     }
 
     /**
-     * Calculate amr and acr claims.
+     * Calculate amr and acr claims. Both are read from the request extensions
+     * recorded at authentication time. Requests that predate those extensions
+     * fall back onto the authorities of the stored authentication.
      *
+     * @param request     the request
      * @param accessToken the access token
      * @param idClaims    the id claims
      */
-    private void calculateAmrAndAcrClaims(final OAuth2AccessTokenEntity accessToken,
+    private void calculateAmrAndAcrClaims(final OAuth2Request request,
+                                          final OAuth2AccessTokenEntity accessToken,
                                           final JWTClaimsSet.Builder idClaims) {
+        final Object acrValue = request.getExtensions().get(OIDCConstants.ACR);
+        final Object amrValue = request.getExtensions().get(OIDCConstants.AMR);
+        if (acrValue != null || amrValue != null) {
+            if (acrValue != null) {
+                idClaims.claim(OIDCConstants.ACR, acrValue.toString());
+                log.debug("Added {} claim as {}", OIDCConstants.ACR, acrValue);
+            }
+            if (amrValue != null) {
+                idClaims.claim(OIDCConstants.AMR, amrValue.toString());
+                log.debug("Added {} claim as {}", OIDCConstants.AMR, amrValue);
+            }
+            return;
+        }
+
         final OAuth2Authentication authN = accessToken.getAuthenticationHolder().getAuthentication();
         final Collection<GrantedAuthority> authorities = authN.getAuthorities();
         for (final GrantedAuthority authority : authorities) {
@@ -418,6 +458,25 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
      */
     private OAuth2AccessTokenEntity createAssociatedToken(final ClientDetailsEntity client, final Set<String> scope) {
 
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setClient(client);
+        token.setScope(scope);
+
+        final JWTClaimsSet claims = new JWTClaimsSet.Builder()
+                .audience(Lists.newArrayList(client.getClientId()))
+                .issuer(configBean.getIssuer())
+                .issueTime(new Date())
+                .expirationTime(token.getExpiration())
+                .jwtID(idGenerator.generateIdentifier())
+                .build();
+
+        final JWSAlgorithm signingAlg = jwtService.getDefaultSigningAlgorithm();
+        final JWSHeader header = signerRegistry.getHeader(signingAlg, jwtService.getDefaultSignerKeyId());
+
+        // sign in the background while the token bookkeeping hits the database
+        final ListenableFuture<SignedJWT> signed =
+                signingPipeline.signWithServerKey(new SignedJWT(header, claims));
+
         // revoke any previous tokens that might exist, just to be sure
         final OAuth2AccessTokenEntity oldToken = tokenService.getRegistrationAccessTokenForClient(client);
         if (oldToken != null) {
@@ -432,32 +491,12 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
                 scope, null, null, null, null);
         final OAuth2Authentication authentication = new OAuth2Authentication(clientAuth, null);
 
-        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
-        token.setClient(client);
-        token.setScope(scope);
-
         AuthenticationHolderEntity authHolder = new AuthenticationHolderEntity();
         authHolder.setAuthentication(authentication);
-        authHolder = authenticationHolderRepository.save(authHolder);
+        authHolder = holderWriteBehind.save(authHolder);
         token.setAuthenticationHolder(authHolder);
 
-        final JWTClaimsSet claims = new JWTClaimsSet.Builder()
-                .audience(Lists.newArrayList(client.getClientId()))
-                .issuer(configBean.getIssuer())
-                .issueTime(new Date())
-                .expirationTime(token.getExpiration())
-                .jwtID(UUID.randomUUID().toString())
-                .build();
-
-        final JWSAlgorithm signingAlg = jwtService.getDefaultSigningAlgorithm();
-        final JWSHeader header = new JWSHeader(signingAlg, null, null, null, null, null, null, null, null, null,
-                jwtService.getDefaultSignerKeyId(),
-                null, null);
-        final SignedJWT signed = new SignedJWT(header, claims);
-
-        jwtService.signJwt(signed);
-
-        token.setJwt(signed);
+        token.setJwt(signingPipeline.await(signed));
 
         return token;
     }
@@ -498,6 +537,42 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
         this.jwtService = svc;
     }
 
+    /**
+     * Gets signer registry.
+     *
+     * @return the signer registry
+     */
+    public JWTSignerRegistry getSignerRegistry() {
+        return signerRegistry;
+    }
+
+    /**
+     * Sets signer registry.
+     *
+     * @param registry the registry
+     */
+    public void setSignerRegistry(final JWTSignerRegistry registry) {
+        this.signerRegistry = registry;
+    }
+
+    /**
+     * Gets signing pipeline.
+     *
+     * @return the signing pipeline
+     */
+    public JWTSigningPipeline getSigningPipeline() {
+        return signingPipeline;
+    }
+
+    /**
+     * Sets signing pipeline.
+     *
+     * @param pipeline the pipeline
+     */
+    public void setSigningPipeline(final JWTSigningPipeline pipeline) {
+        this.signingPipeline = pipeline;
+    }
+
     /**
      * Gets authentication holder repository.
      *
@@ -517,4 +592,40 @@ public class ShibbolethAcrAwareTokenService implements OIDCTokenService {
         this.authenticationHolderRepository = repo;
     }
 
+    /**
+     * Sets encrypters.
+     *
+     * @param cache the cache
+     */
+    public void setEncrypters(final ClientEncrypterCache cache) {
+        this.encrypters = cache;
+    }
+
+    /**
+     * Sets id token metrics.
+     *
+     * @param metrics the metrics
+     */
+    public void setIdTokenMetrics(final IdTokenMetrics metrics) {
+        this.idTokenMetrics = metrics;
+    }
+
+    /**
+     * Sets holder write behind.
+     *
+     * @param writeBehind the write behind
+     */
+    public void setHolderWriteBehind(final AuthenticationHolderWriteBehind writeBehind) {
+        this.holderWriteBehind = writeBehind;
+    }
+
+    /**
+     * Sets id generator.
+     *
+     * @param generator the generator
+     */
+    public void setIdGenerator(final IdentifierGenerator generator) {
+        this.idGenerator = generator;
+    }
+
 }
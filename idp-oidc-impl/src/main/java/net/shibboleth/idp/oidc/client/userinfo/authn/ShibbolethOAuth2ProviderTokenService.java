@@ -0,0 +1,566 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.nimbusds.jose.EncryptionMethod;
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWEAlgorithm;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.Payload;
+import com.nimbusds.jose.crypto.DirectDecrypter;
+import com.nimbusds.jose.crypto.DirectEncrypter;
+import com.nimbusds.jwt.JWT;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.JWTParser;
+import com.nimbusds.jwt.SignedJWT;
+import net.shibboleth.idp.oidc.OIDCException;
+import net.shibboleth.idp.oidc.config.OIDCConstants;
+import net.shibboleth.idp.oidc.util.IdentifierGenerator;
+import org.mitre.jwt.signer.service.JWTSigningAndValidationService;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.mitre.oauth2.service.SystemScopeService;
+import org.mitre.oauth2.service.impl.DefaultOAuth2ProviderTokenService;
+import org.mitre.openid.connect.config.ConfigurationPropertiesBean;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.service.OIDCTokenService;
+import org.mitre.openid.connect.service.UserInfoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Token service that can issue self-contained access tokens for selected clients.
+ * Such "stateless" tokens are signed JWTs that carry the client, scope, subject
+ * and authorities; they are never written to the token or authentication holder
+ * tables and are validated by signature, issuer and expiration alone.
+ * Stateless clients are not issued refresh tokens. All other clients
+ * are handled by the default MITREid token service.
+ *
+ * The client can read a stateless token, so its subject is the one the client
+ * is given in its ID token, pairwise where the client asks for it. The local
+ * principal name is carried only encrypted, with a key derived from a
+ * configured secret, so that the token can be resolved back to the principal.
+ *
+ * Every token is checked against the {@link TokenRevocationIndex} before
+ * any database lookup, and every revocation is recorded in it.
+ *
+ * Tokens whose authentication holder is still queued in the
+ * {@link AuthenticationHolderWriteBehind} are queued with it, and are
+ * served from memory until written.
+ */
+@Service("shibbolethOAuth2ProviderTokenService")
+@Primary
+public class ShibbolethOAuth2ProviderTokenService extends DefaultOAuth2ProviderTokenService {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(ShibbolethOAuth2ProviderTokenService.class);
+
+    /**
+     * Client ids that receive stateless access tokens.
+     */
+    private Set<String> statelessClientIds = Collections.emptySet();
+
+    /**
+     * Lifetime in seconds of stateless tokens for clients that do not define one.
+     */
+    private int statelessTokenLifetime = 3600;
+
+    /**
+     * The encrypter of the principal name in stateless tokens.
+     */
+    private DirectEncrypter principalEncrypter;
+
+    /**
+     * The decrypter of the principal name in stateless tokens.
+     */
+    private DirectDecrypter principalDecrypter;
+
+    /**
+     * The Client service.
+     */
+    @Autowired
+    private ClientDetailsEntityService clientService;
+
+    /**
+     * The Scope service.
+     */
+    @Autowired
+    private SystemScopeService scopeService;
+
+    /**
+     * The Config bean.
+     */
+    @Autowired
+    private ConfigurationPropertiesBean configBean;
+
+    /**
+     * The Jwt service.
+     */
+    @Autowired
+    private JWTSigningAndValidationService jwtService;
+
+    /**
+     * The Signer registry.
+     */
+    @Autowired
+    private JWTSignerRegistry signerRegistry;
+
+    /**
+     * The Signing pipeline.
+     */
+    @Autowired
+    private JWTSigningPipeline signingPipeline;
+
+    /**
+     * The Connect token service.
+     */
+    @Autowired
+    private OIDCTokenService connectTokenService;
+
+    /**
+     * The User info service.
+     */
+    @Autowired
+    private UserInfoService userInfoService;
+
+    /**
+     * The Revocation index.
+     */
+    @Autowired
+    private TokenRevocationIndex revocationIndex;
+
+    /**
+     * The Holder write behind.
+     */
+    @Autowired
+    private AuthenticationHolderWriteBehind holderWriteBehind;
+
+    /**
+     * The Id generator.
+     */
+    @Autowired
+    private IdentifierGenerator idGenerator;
+
+    /**
+     * Check that stateless tokens can be issued if any client is configured to receive them.
+     */
+    @PostConstruct
+    public void checkStatelessConfiguration() {
+        if (!statelessClientIds.isEmpty() && principalEncrypter == null) {
+            throw new OIDCException("No secret is configured for stateless access tokens");
+        }
+    }
+
+    @Override
+    @Transactional(value = "defaultTransactionManager")
+    public OAuth2AccessTokenEntity createAccessToken(final OAuth2Authentication authentication)
+            throws AuthenticationException, InvalidClientException {
+        if (authentication != null && authentication.getOAuth2Request() != null
+                && isStatelessClient(authentication.getOAuth2Request().getClientId())) {
+            return createStatelessAccessToken(authentication);
+        }
+        return super.createAccessToken(authentication);
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity readAccessToken(final String accessTokenValue) throws AuthenticationException {
+        final JWT jwt = parse(accessTokenValue);
+        checkNotRevoked(jwt);
+        final OAuth2AccessTokenEntity token = readStatelessAccessToken(jwt);
+        if (token != null) {
+            return token;
+        }
+        final OAuth2AccessTokenEntity pending = holderWriteBehind.getPendingToken(accessTokenValue);
+        if (pending != null) {
+            return pending;
+        }
+        return super.readAccessToken(accessTokenValue);
+    }
+
+    @Override
+    public OAuth2Authentication loadAuthentication(final String accessTokenValue) throws AuthenticationException {
+        final JWT jwt = parse(accessTokenValue);
+        checkNotRevoked(jwt);
+        final OAuth2AccessTokenEntity token = readStatelessAccessToken(jwt);
+        if (token != null) {
+            return token.getAuthenticationHolder().getAuthentication();
+        }
+        final OAuth2AccessTokenEntity pending = holderWriteBehind.getPendingToken(accessTokenValue);
+        if (pending != null) {
+            return pending.getAuthenticationHolder().getAuthentication();
+        }
+        return super.loadAuthentication(accessTokenValue);
+    }
+
+    @Override
+    @Transactional(value = "defaultTransactionManager")
+    public OAuth2AccessTokenEntity saveAccessToken(final OAuth2AccessTokenEntity accessToken) {
+        if (accessToken.getId() == null && holderWriteBehind.attach(accessToken)) {
+            log.debug("Queued access token for client {} behind its authentication holder",
+                    accessToken.getClient() != null ? accessToken.getClient().getClientId() : null);
+            return accessToken;
+        }
+        return super.saveAccessToken(accessToken);
+    }
+
+    @Override
+    public OAuth2AccessTokenEntity getRegistrationAccessTokenForClient(final ClientDetailsEntity client) {
+        final OAuth2AccessTokenEntity pending = holderWriteBehind.getPendingRegistrationToken(client.getClientId());
+        if (pending != null) {
+            return pending;
+        }
+        return super.getRegistrationAccessTokenForClient(client);
+    }
+
+    @Override
+    @Transactional(value = "defaultTransactionManager")
+    public void revokeAccessToken(final OAuth2AccessTokenEntity accessToken) {
+        revocationIndex.revoke(getJwtId(accessToken.getJwt()), accessToken.getExpiration());
+        if (accessToken.getId() == null && holderWriteBehind.cancel(accessToken)) {
+            log.debug("Revoked access token before it was written");
+            return;
+        }
+        if (accessToken.getId() == null && accessToken.getClient() != null
+                && isStatelessClient(accessToken.getClient().getClientId())) {
+            log.info("Revoked stateless access token for client {}; it would have expired at {}",
+                    accessToken.getClient().getClientId(), accessToken.getExpiration());
+            return;
+        }
+        super.revokeAccessToken(accessToken);
+    }
+
+    /**
+     * Is the client configured to receive stateless tokens.
+     *
+     * @param clientId the client id
+     * @return true if stateless
+     */
+    public boolean isStatelessClient(final String clientId) {
+        return clientId != null && statelessClientIds.contains(clientId);
+    }
+
+    /**
+     * Sets stateless client ids as a comma-separated list.
+     *
+     * @param clientIds the client ids
+     */
+    @Value("%{oidc.token.stateless.clients:}")
+    public void setStatelessClientIds(final String clientIds) {
+        this.statelessClientIds = ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+                .split(Strings.nullToEmpty(clientIds)));
+        if (!this.statelessClientIds.isEmpty()) {
+            log.info("Stateless access tokens are enabled for clients {}", this.statelessClientIds);
+        }
+    }
+
+    /**
+     * Sets stateless token lifetime in seconds.
+     *
+     * @param lifetime the lifetime
+     */
+    @Value("%{oidc.token.stateless.lifetime:3600}")
+    public void setStatelessTokenLifetime(final int lifetime) {
+        this.statelessTokenLifetime = lifetime;
+    }
+
+    /**
+     * Sets the secret from which the key encrypting the principal name of stateless tokens is derived.
+     *
+     * @param secret the secret
+     */
+    @Value("%{oidc.token.stateless.secret:}")
+    public void setStatelessSecret(final String secret) {
+        if (Strings.isNullOrEmpty(secret)) {
+            return;
+        }
+        if (secret.length() < 32) {
+            throw new OIDCException("The stateless access token secret must be at least 32 characters long");
+        }
+        final byte[] key = Arrays.copyOf(Hashing.sha256().hashString(secret, StandardCharsets.UTF_8).asBytes(), 16);
+        try {
+            this.principalEncrypter = new DirectEncrypter(new SecretKeySpec(key, "AES"));
+            this.principalDecrypter = new DirectDecrypter(new SecretKeySpec(key, "AES"));
+        } catch (final JOSEException e) {
+            throw new OIDCException("Could not initialize the stateless access token key", e);
+        }
+    }
+
+    /**
+     * Create a signed, self-contained access token without touching storage.
+     *
+     * @param authentication the authentication
+     * @return the access token
+     */
+    private OAuth2AccessTokenEntity createStatelessAccessToken(final OAuth2Authentication authentication) {
+        final OAuth2Request request = authentication.getOAuth2Request();
+        final ClientDetailsEntity client = clientService.loadClientByClientId(request.getClientId());
+        if (client == null) {
+            throw new InvalidClientException("Client not found: " + request.getClientId());
+        }
+
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setClient(client);
+        token.setScope(scopeService.toStrings(scopeService.removeReservedScopes(
+                scopeService.fromStrings(request.getScope()))));
+
+        final Date issueTime = new Date();
+        final int lifetime = client.getAccessTokenValiditySeconds() != null
+                && client.getAccessTokenValiditySeconds() > 0
+                ? client.getAccessTokenValiditySeconds() : statelessTokenLifetime;
+        token.setExpiration(new Date(issueTime.getTime() + lifetime * 1000L));
+
+        final AuthenticationHolderEntity authHolder = new AuthenticationHolderEntity();
+        authHolder.setAuthentication(authentication);
+        token.setAuthenticationHolder(authHolder);
+
+        UserInfo userInfo = null;
+        String subject = authentication.getName();
+        if (!authentication.isClientOnly()) {
+            userInfo = userInfoService.getByUsernameAndClientId(authentication.getName(), client.getClientId());
+            subject = userInfo != null ? userInfo.getSub() : null;
+        }
+
+        final JWTClaimsSet.Builder claims = new JWTClaimsSet.Builder()
+                .issuer(configBean.getIssuer())
+                .subject(subject)
+                .audience(Lists.newArrayList(client.getClientId()))
+                .issueTime(issueTime)
+                .expirationTime(token.getExpiration())
+                .jwtID(idGenerator.generateIdentifier())
+                .claim(OIDCConstants.CLIENT_ID, client.getClientId())
+                .claim(OIDCConstants.SCOPE, Joiner.on(' ').join(token.getScope()));
+
+        if (!authentication.isClientOnly()) {
+            final List<String> authorities = new ArrayList<>();
+            for (final GrantedAuthority authority : authentication.getUserAuthentication().getAuthorities()) {
+                authorities.add(authority.getAuthority());
+            }
+            claims.claim(OIDCConstants.AUTHORITIES, authorities);
+            claims.claim(OIDCConstants.PRINCIPAL, encryptPrincipal(authentication.getName()));
+        }
+
+        final JWSHeader header = signerRegistry.getHeader(jwtService.getDefaultSigningAlgorithm(),
+                jwtService.getDefaultSignerKeyId());
+        token.setJwt(signingPipeline.await(signingPipeline.signWithServerKey(new SignedJWT(header, claims.build()))));
+        log.debug("Issued stateless access token for client {} expiring at {}",
+                client.getClientId(), token.getExpiration());
+
+        if (request.getScope().contains(SystemScopeService.OPENID_SCOPE) && !authentication.isClientOnly()) {
+            if (userInfo != null) {
+                final JWT idToken = connectTokenService.createIdToken(client, request, issueTime,
+                        userInfo.getSub(), token);
+                token.setIdToken(idToken);
+            } else {
+                log.warn("No userinfo could be found for {}; the id token is skipped", authentication.getName());
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Encrypt the principal name so that only this server can read it.
+     *
+     * @param principal the principal name
+     * @return the encrypted principal name, in compact form
+     */
+    private String encryptPrincipal(final String principal) {
+        final JWEObject jwe = new JWEObject(new JWEHeader(JWEAlgorithm.DIR, EncryptionMethod.A128GCM),
+                new Payload(principal));
+        try {
+            jwe.encrypt(principalEncrypter);
+        } catch (final JOSEException e) {
+            throw new OIDCException("Could not encrypt the principal of a stateless access token", e);
+        }
+        return jwe.serialize();
+    }
+
+    /**
+     * Decrypt the principal name of a stateless token.
+     *
+     * @param encrypted the encrypted principal name
+     * @return the principal name
+     */
+    private String decryptPrincipal(final Object encrypted) {
+        if (!(encrypted instanceof String) || principalDecrypter == null) {
+            throw new InvalidTokenException("Access token carries no principal");
+        }
+        try {
+            final JWEObject jwe = JWEObject.parse((String) encrypted);
+            jwe.decrypt(principalDecrypter);
+            return jwe.getPayload().toString();
+        } catch (final ParseException | JOSEException e) {
+            throw new InvalidTokenException("Access token principal cannot be read");
+        }
+    }
+
+    /**
+     * Parse the access token value.
+     *
+     * @param accessTokenValue the access token value
+     * @return the jwt, or null if the value is not a jwt
+     */
+    private JWT parse(final String accessTokenValue) {
+        if (Strings.isNullOrEmpty(accessTokenValue)) {
+            return null;
+        }
+        try {
+            return JWTParser.parse(accessTokenValue);
+        } catch (final ParseException e) {
+            log.trace("Access token is not a JWT", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the jti of the jwt.
+     *
+     * @param jwt the jwt
+     * @return the jwt id, or null
+     */
+    private String getJwtId(final JWT jwt) {
+        if (jwt == null) {
+            return null;
+        }
+        try {
+            return jwt.getJWTClaimsSet().getJWTID();
+        } catch (final ParseException e) {
+            log.trace("Could not read the claims of the JWT", e);
+            return null;
+        }
+    }
+
+    /**
+     * Reject the token if its jti has been revoked.
+     *
+     * @param jwt the jwt
+     */
+    private void checkNotRevoked(final JWT jwt) {
+        final String jti = getJwtId(jwt);
+        if (revocationIndex.isRevoked(jti)) {
+            throw new InvalidTokenException("Access token has been revoked: " + jti);
+        }
+    }
+
+    /**
+     * Read a stateless access token, validating its signature, issuer and expiration.
+     *
+     * @param parsed the parsed access token
+     * @return the access token, or null if the value is not a stateless token
+     */
+    private OAuth2AccessTokenEntity readStatelessAccessToken(final JWT parsed) {
+        if (statelessClientIds.isEmpty() || !(parsed instanceof SignedJWT)) {
+            return null;
+        }
+
+        final SignedJWT jwt = (SignedJWT) parsed;
+        final JWTClaimsSet claims;
+        try {
+            claims = jwt.getJWTClaimsSet();
+        } catch (final ParseException e) {
+            return null;
+        }
+
+        final Object clientId = claims.getClaim(OIDCConstants.CLIENT_ID);
+        if (!(clientId instanceof String) || !isStatelessClient((String) clientId)) {
+            return null;
+        }
+        if (!jwtService.validateSignature(jwt)) {
+            throw new InvalidTokenException("Invalid access token signature");
+        }
+        if (!configBean.getIssuer().equals(claims.getIssuer())) {
+            throw new InvalidTokenException("Invalid access token issuer " + claims.getIssuer());
+        }
+        if (claims.getExpirationTime() == null || claims.getExpirationTime().before(new Date())) {
+            throw new InvalidTokenException("Expired access token: " + claims.getJWTID());
+        }
+
+        final ClientDetailsEntity client = clientService.loadClientByClientId((String) clientId);
+        if (client == null) {
+            throw new InvalidTokenException("Client not found for access token: " + clientId);
+        }
+
+        final Object scopeClaim = claims.getClaim(OIDCConstants.SCOPE);
+        final Set<String> scope = Sets.newLinkedHashSet(Splitter.on(' ').omitEmptyStrings()
+                .split(scopeClaim != null ? scopeClaim.toString() : ""));
+
+        final OAuth2Request request = new OAuth2Request(Maps.<String, String>newHashMap(), client.getClientId(),
+                client.getAuthorities(), true, scope, client.getResourceIds(), null, null,
+                Maps.<String, Serializable>newHashMap());
+
+        Authentication userAuth = null;
+        final Object authoritiesClaim = claims.getClaim(OIDCConstants.AUTHORITIES);
+        if (authoritiesClaim instanceof Collection) {
+            final List<GrantedAuthority> authorities = new ArrayList<>();
+            for (final Object authority : (Collection<?>) authoritiesClaim) {
+                authorities.add(new SimpleGrantedAuthority(authority.toString()));
+            }
+            userAuth = new UsernamePasswordAuthenticationToken(
+                    decryptPrincipal(claims.getClaim(OIDCConstants.PRINCIPAL)), null, authorities);
+        }
+
+        final AuthenticationHolderEntity authHolder = new AuthenticationHolderEntity();
+        authHolder.setAuthentication(new OAuth2Authentication(request, userAuth));
+
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setClient(client);
+        token.setScope(scope);
+        token.setExpiration(claims.getExpirationTime());
+        token.setAuthenticationHolder(authHolder);
+        token.setJwt(jwt);
+        return token;
+    }
+}
@@ -37,20 +37,37 @@ public final class SpringSecurityAuthenticationToken extends AbstractAuthenticat
     private final Object principal;
     private final DateTime authenticationDateTime;
 
+    /**
+     * The authentication context class ref, or null.
+     */
+    private final String authenticationClassRef;
+
+    /**
+     * The authentication method ref, or null.
+     */
+    private final String authenticationMethodRef;
+
     /**
      * Instantiates a new Spring security authentication token.
      *
-     * @param prc                    the prc
-     * @param authorities            the authorities
-     * @param principal
-     * @param authenticationDateTime
+     * @param authorities             the authorities
+     * @param credentials             the credentials
+     * @param principal               the principal
+     * @param authenticationDateTime  the authentication date time
+     * @param authenticationClassRef  the authentication context class ref
+     * @param authenticationMethodRef the authentication method ref
      */
     SpringSecurityAuthenticationToken(final Collection<GrantedAuthority> authorities,
-                                      final Object credentials, final Object principal, final DateTime authenticationDateTime) {
+                                      final Object credentials, final Object principal,
+                                      final DateTime authenticationDateTime,
+                                      final String authenticationClassRef,
+                                      final String authenticationMethodRef) {
         super(authorities);
         this.credentials = credentials;
         this.principal = principal;
         this.authenticationDateTime = authenticationDateTime;
+        this.authenticationClassRef = authenticationClassRef;
+        this.authenticationMethodRef = authenticationMethodRef;
     }
 
     @Override
@@ -72,4 +89,22 @@ public final class SpringSecurityAuthenticationToken extends AbstractAuthenticat
     public DateTime getAuthenticationDateTime() {
         return authenticationDateTime;
     }
+
+    /**
+     * Gets authentication context class ref.
+     *
+     * @return the acr, or null
+     */
+    public String getAuthenticationClassRef() {
+        return authenticationClassRef;
+    }
+
+    /**
+     * Gets authentication method ref.
+     *
+     * @return the amr, or null
+     */
+    public String getAuthenticationMethodRef() {
+        return authenticationMethodRef;
+    }
 }
@@ -25,6 +25,7 @@ import net.shibboleth.idp.oidc.OIDCException;
 import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationClassRefAuthority;
 import net.shibboleth.idp.oidc.client.userinfo.authn.authority.AuthenticationMethodRefAuthority;
 import net.shibboleth.idp.oidc.config.OIDCConstants;
+import net.shibboleth.idp.oidc.util.IdentifierGenerator;
 import net.shibboleth.idp.session.context.SessionContext;
 import org.joda.time.DateTime;
 import org.mitre.oauth2.model.ClientDetailsEntity;
@@ -39,7 +40,6 @@ import org.springframework.security.core.userdetails.User;
 import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.UUID;
 
 /**
  * The type Spring security authentication token factory.
@@ -61,10 +61,12 @@ public final class SpringSecurityAuthenticationTokenFactory {
      *
      * @param profileRequestContext the profile request context
      * @param client                the client
+     * @param idGenerator           the generator of the throwaway user password
      * @return the authentication
      */
     public static Authentication buildAuthentication(final ProfileRequestContext profileRequestContext,
-                                                     final ClientDetailsEntity client) {
+                                                     final ClientDetailsEntity client,
+                                                     final IdentifierGenerator idGenerator) {
         final SubjectContext principal = profileRequestContext.getSubcontext(SubjectContext.class);
 
         if (principal == null || principal.getPrincipalName() == null) {
@@ -83,6 +85,8 @@ public final class SpringSecurityAuthenticationTokenFactory {
         authorities.add(new SimpleGrantedAuthority(OIDCConstants.ROLE_USER));
         authorities.add(new SimpleGrantedAuthority(OIDCConstants.ROLE_CLIENT + "_" + client.getClientId()));
 
+        String acr = null;
+        String amr = null;
         final AuthenticationContext authCtx = profileRequestContext.getSubcontext(AuthenticationContext.class);
         if (authCtx != null) {
             LOG.debug("Found an authentication context in the profile request context");
@@ -92,15 +96,15 @@ public final class SpringSecurityAuthenticationTokenFactory {
                 LOG.debug("Found requested principal context context with matching principal {}",
                     principalContext.getMatchingPrincipal().getName());
 
-                final AuthenticationClassRefAuthority authority = new AuthenticationClassRefAuthority(
-                    principalContext.getMatchingPrincipal().getName());
+                acr = principalContext.getMatchingPrincipal().getName();
+                final AuthenticationClassRefAuthority authority = new AuthenticationClassRefAuthority(acr);
 
                 LOG.debug("Adding authority {}", authority.getAuthority());
                 authorities.add(new SimpleGrantedAuthority(authority.toString()));
             }
             if (authCtx.getAuthenticationResult() != null) {
-                final AuthenticationMethodRefAuthority authority = new AuthenticationMethodRefAuthority(
-                    authCtx.getAuthenticationResult().getAuthenticationFlowId());
+                amr = authCtx.getAuthenticationResult().getAuthenticationFlowId();
+                final AuthenticationMethodRefAuthority authority = new AuthenticationMethodRefAuthority(amr);
                 LOG.debug("Adding authority {}", authority.getAuthority());
                 authorities.add(new SimpleGrantedAuthority(authority.toString()));
             }
@@ -110,7 +114,7 @@ public final class SpringSecurityAuthenticationTokenFactory {
          * Note that Spring Security loses the details object when it attempts to grab onto the authentication
          * object that is combined, when codes are asking to create access tokens.
          */
-        final User user = new User(principal.getPrincipalName(), UUID.randomUUID().toString(),
+        final User user = new User(principal.getPrincipalName(), idGenerator.generateIdentifier(),
             Collections.singleton(new SimpleGrantedAuthority(OIDCConstants.ROLE_USER)));
 
         LOG.debug("Created user details object for {} with authorities {}", user.getUsername(), user.getAuthorities());
@@ -119,7 +123,7 @@ public final class SpringSecurityAuthenticationTokenFactory {
             new SpringSecurityAuthenticationToken(authorities,
                 getAuthenticationTokenCredentials(profileRequestContext),
                 getAuthenticationTokenPrincipal(profileRequestContext),
-                getAuthenticationDateTime(profileRequestContext));
+                getAuthenticationDateTime(profileRequestContext), acr, amr);
         LOG.debug("Final authentication token authorities are {}", authorities);
 
         authenticationToken.setAuthenticated(true);
@@ -0,0 +1,418 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of revoked token identifiers (jti). Recent revocations are
+ * held in an exact set; all live revocations are held in a Bloom filter so
+ * that the common case, a token that was never revoked, is answered without
+ * a database round trip. A Bloom filter hit that is not in the exact set is
+ * confirmed against the revoked_token table.
+ *
+ * Revocations are written through to the revoked_token table. Other nodes pick
+ * them up through {@link #synchronize()}, which pulls the delta since the last
+ * pull, and {@link #rebuild()}, which recreates the filter from the live rows
+ * and purges the expired ones. A revocation therefore reaches every node within
+ * one synchronization interval. The filter is only read and written under the
+ * index's lock, as Guava's filter does not support concurrent puts and lookups.
+ *
+ * When the table cannot be reached, a token whose revocation cannot be ruled
+ * out is accepted with a rate-limited warning, unless the index is configured
+ * to fail closed. Until the filter could be built, every lookup first retries
+ * building it, at most once per retry interval.
+ */
+@Component("tokenRevocationIndex")
+public class TokenRevocationIndex {
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(TokenRevocationIndex.class);
+
+    /**
+     * Recent revocations, keyed by jti, valued by the time they entered the set.
+     */
+    private final ConcurrentMap<String, Long> recent = new ConcurrentHashMap<>();
+
+    /**
+     * The filter over all live revocations.
+     */
+    private volatile BloomFilter<CharSequence> filter;
+
+    /**
+     * The revocation time up to which the delta pull has read.
+     */
+    private volatile long watermark;
+
+    /**
+     * Expected number of live revocations.
+     */
+    private int expectedInsertions = 100000;
+
+    /**
+     * Acceptable false positive probability.
+     */
+    private double falsePositiveProbability = 0.001;
+
+    /**
+     * How long in milliseconds an entry stays in the exact set.
+     */
+    private long recentWindow = 600000;
+
+    /**
+     * Overlap in milliseconds applied to each delta pull, to absorb clock skew between nodes.
+     */
+    private long syncOverlap = 60000;
+
+    /**
+     * How long in milliseconds revocations of tokens without expiration are kept.
+     */
+    private long unboundedRetention = 86400000;
+
+    /**
+     * Minimum time in milliseconds between attempts to build the filter, and between warnings.
+     */
+    private long retryInterval = 30000;
+
+    /**
+     * Whether tokens are rejected when their revocation cannot be confirmed.
+     */
+    private boolean failClosed;
+
+    /**
+     * When the last attempt to build the filter was made.
+     */
+    private final AtomicLong lastRebuildAttempt = new AtomicLong();
+
+    /**
+     * When the last unavailability warning was logged.
+     */
+    private final AtomicLong lastWarning = new AtomicLong();
+
+    /**
+     * The Jdbc template.
+     */
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Initialize the index from the database.
+     */
+    @PostConstruct
+    public void initialize() {
+        rebuild();
+    }
+
+    /**
+     * Sets data source.
+     *
+     * @param dataSource the data source
+     */
+    @Resource(name = "dataSource")
+    public void setDataSource(final DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /**
+     * Record the revocation of the given token identifier. Tokens that have
+     * already expired are not recorded, since they can no longer be accepted;
+     * this is the case for every token removed by the expired token cleanup.
+     *
+     * @param jti        the token id
+     * @param expiration the token expiration, after which the revocation may be forgotten
+     */
+    public void revoke(final String jti, final Date expiration) {
+        if (Strings.isNullOrEmpty(jti)) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (expiration != null && expiration.getTime() <= now) {
+            log.trace("Token {} has expired; its revocation is not recorded", jti);
+            return;
+        }
+        add(jti, now);
+        try {
+            jdbcTemplate.update("INSERT INTO revoked_token (jti, expiration, revoked_at) VALUES (?, ?, ?)",
+                    jti, expiration != null ? new Timestamp(expiration.getTime()) : null, new Timestamp(now));
+            log.debug("Recorded revocation of token {}", jti);
+        } catch (final DuplicateKeyException e) {
+            log.debug("Token {} is already revoked", jti);
+        }
+    }
+
+    /**
+     * Is the token identifier revoked.
+     *
+     * @param jti the token id
+     * @return true if revoked
+     */
+    public boolean isRevoked(final String jti) {
+        if (Strings.isNullOrEmpty(jti)) {
+            return false;
+        }
+        if (recent.containsKey(jti)) {
+            return true;
+        }
+        BloomFilter<CharSequence> current = filter;
+        if (current == null) {
+            retryRebuild();
+            current = filter;
+            if (current == null) {
+                return unavailable(jti, null);
+            }
+        }
+        final boolean mightContain;
+        synchronized (this) {
+            mightContain = current.mightContain(jti);
+        }
+        if (!mightContain) {
+            return false;
+        }
+        try {
+            final Integer count = jdbcTemplate.queryForObject(
+                    "SELECT COUNT(*) FROM revoked_token WHERE jti = ?", Integer.class, jti);
+            if (count != null && count > 0) {
+                recent.put(jti, System.currentTimeMillis());
+                return true;
+            }
+            return false;
+        } catch (final DataAccessException e) {
+            return unavailable(jti, e);
+        }
+    }
+
+    /**
+     * Answer for a token whose revocation could not be checked against the table.
+     * Warns at most once per retry interval.
+     *
+     * @param jti   the token id
+     * @param cause the failure, or null if the filter could never be built
+     * @return whether the token is treated as revoked
+     */
+    private boolean unavailable(final String jti, final DataAccessException cause) {
+        final long now = System.currentTimeMillis();
+        final long last = lastWarning.get();
+        if (now - last >= retryInterval && lastWarning.compareAndSet(last, now)) {
+            log.warn("The revoked token table cannot be reached; tokens whose revocation cannot be "
+                    + "ruled out are treated as {}", failClosed ? "revoked" : "valid", cause);
+        } else {
+            log.debug("Could not check revocation of token {}", jti);
+        }
+        return failClosed;
+    }
+
+    /**
+     * Try to build the filter, unless an attempt was made within the retry interval.
+     */
+    private void retryRebuild() {
+        final long now = System.currentTimeMillis();
+        final long last = lastRebuildAttempt.get();
+        if (now - last >= retryInterval && lastRebuildAttempt.compareAndSet(last, now)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Pull revocations recorded since the last pull, and age out the exact set.
+     * Rebuilds the filter instead if it could not be built before.
+     */
+    public void synchronize() {
+        if (filter == null) {
+            rebuild();
+            return;
+        }
+        final long since = Math.max(0, watermark - syncOverlap);
+        final long[] latest = {watermark};
+        final int[] count = {0};
+        try {
+            jdbcTemplate.query("SELECT jti, revoked_at FROM revoked_token WHERE revoked_at > ?",
+                    new RowCallbackHandler() {
+                        @Override
+                        public void processRow(final ResultSet rs) throws SQLException {
+                            final long revokedAt = rs.getTimestamp(2).getTime();
+                            add(rs.getString(1), System.currentTimeMillis());
+                            latest[0] = Math.max(latest[0], revokedAt);
+                            count[0]++;
+                        }
+                    }, new Timestamp(since));
+            watermark = latest[0];
+        } catch (final DataAccessException e) {
+            log.warn("Could not pull revoked tokens from the database", e);
+        }
+
+        final long cutoff = System.currentTimeMillis() - recentWindow;
+        final Iterator<Map.Entry<String, Long>> it = recent.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue() < cutoff) {
+                it.remove();
+            }
+        }
+        log.trace("Pulled {} revocation(s); {} held in the exact set", count[0], recent.size());
+    }
+
+    /**
+     * Purge expired revocations and rebuild the filter from the remaining rows.
+     */
+    public void rebuild() {
+        lastRebuildAttempt.set(System.currentTimeMillis());
+        final BloomFilter<CharSequence> fresh = BloomFilter.create(
+                Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions, falsePositiveProbability);
+        final long[] latest = {0};
+        final int[] count = {0};
+        try {
+            final long now = System.currentTimeMillis();
+            jdbcTemplate.update("DELETE FROM revoked_token WHERE expiration < ?", new Timestamp(now));
+            jdbcTemplate.update("DELETE FROM revoked_token WHERE expiration IS NULL AND revoked_at < ?",
+                    new Timestamp(now - unboundedRetention));
+            jdbcTemplate.query("SELECT jti, revoked_at FROM revoked_token", new RowCallbackHandler() {
+                @Override
+                public void processRow(final ResultSet rs) throws SQLException {
+                    fresh.put(rs.getString(1));
+                    latest[0] = Math.max(latest[0], rs.getTimestamp(2).getTime());
+                    count[0]++;
+                }
+            });
+        } catch (final DataAccessException e) {
+            log.warn("Could not rebuild the revocation filter; keeping the current one", e);
+            return;
+        }
+
+        synchronized (this) {
+            for (final String jti : recent.keySet()) {
+                fresh.put(jti);
+            }
+            filter = fresh;
+        }
+        watermark = Math.max(watermark, latest[0]);
+        if (count[0] > expectedInsertions) {
+            log.warn("{} live revocations exceed the expected {}; the false positive rate will rise",
+                    count[0], expectedInsertions);
+        }
+        log.debug("Rebuilt revocation filter with {} live revocation(s)", count[0]);
+    }
+
+    /**
+     * Sets expected insertions.
+     *
+     * @param insertions the insertions
+     */
+    @Value("%{oidc.token.revocation.expectedInsertions:100000}")
+    public void setExpectedInsertions(final int insertions) {
+        this.expectedInsertions = insertions;
+    }
+
+    /**
+     * Sets false positive probability.
+     *
+     * @param fpp the fpp
+     */
+    @Value("%{oidc.token.revocation.falsePositiveProbability:0.001}")
+    public void setFalsePositiveProbability(final double fpp) {
+        this.falsePositiveProbability = fpp;
+    }
+
+    /**
+     * Sets recent window.
+     *
+     * @param window the window
+     */
+    @Value("%{oidc.token.revocation.recentWindow:600000}")
+    public void setRecentWindow(final long window) {
+        this.recentWindow = window;
+    }
+
+    /**
+     * Sets sync overlap.
+     *
+     * @param overlap the overlap
+     */
+    @Value("%{oidc.token.revocation.syncOverlap:60000}")
+    public void setSyncOverlap(final long overlap) {
+        this.syncOverlap = overlap;
+    }
+
+    /**
+     * Sets how long revocations of tokens without expiration are kept. Such tokens
+     * are stored, and revoking them deletes them, so the revocation is only needed
+     * until every node has seen it.
+     *
+     * @param retention the retention
+     */
+    @Value("%{oidc.token.revocation.unboundedRetention:86400000}")
+    public void setUnboundedRetention(final long retention) {
+        this.unboundedRetention = retention;
+    }
+
+    /**
+     * Sets the minimum time between attempts to build the filter, and between warnings.
+     *
+     * @param interval the interval
+     */
+    @Value("%{oidc.token.revocation.retryInterval:30000}")
+    public void setRetryInterval(final long interval) {
+        this.retryInterval = interval;
+    }
+
+    /**
+     * Sets whether tokens are rejected when their revocation cannot be confirmed.
+     *
+     * @param closed true to fail closed
+     */
+    @Value("%{oidc.token.revocation.failClosed:false}")
+    public void setFailClosed(final boolean closed) {
+        this.failClosed = closed;
+    }
+
+    /**
+     * Add the jti to the exact set and the filter.
+     *
+     * @param jti  the jti
+     * @param when the time it entered the exact set
+     */
+    private void add(final String jti, final long when) {
+        recent.put(jti, when);
+        synchronized (this) {
+            if (filter != null) {
+                filter.put(jti);
+            }
+        }
+    }
+}
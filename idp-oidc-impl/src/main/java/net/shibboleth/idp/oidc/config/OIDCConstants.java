@@ -70,4 +70,24 @@ public interface OIDCConstants {
      * The constant ROLE_CLIENT.
      */
     String ROLE_CLIENT = "ROLE_CLIENT";
+
+    /**
+     * The constant CLIENT_ID.
+     */
+    String CLIENT_ID = "client_id";
+
+    /**
+     * The constant SCOPE.
+     */
+    String SCOPE = "scope";
+
+    /**
+     * The constant AUTHORITIES.
+     */
+    String AUTHORITIES = "authorities";
+
+    /**
+     * The constant PRINCIPAL.
+     */
+    String PRINCIPAL = "principal";
 }
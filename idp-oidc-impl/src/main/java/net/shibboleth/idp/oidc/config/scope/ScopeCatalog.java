@@ -0,0 +1,143 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.config.scope;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.mitre.oauth2.model.SystemScope;
+import org.mitre.openid.connect.service.ScopeClaimTranslationService;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled view of the system scopes: each scope gets its ordinal in the display
+ * order, sets of scopes are encoded as bit sets over those ordinals, and the claims
+ * of each scope are expanded once. Sorting requested scopes for display and looking
+ * up their claims are then array operations. A catalog is immutable and is compiled
+ * again whenever the scope set changes.
+ */
+public final class ScopeCatalog {
+    /**
+     * The scopes by ordinal.
+     */
+    private final SystemScope[] scopes;
+
+    /**
+     * The claims of the scopes by ordinal.
+     */
+    private final Set<String>[] claims;
+
+    /**
+     * The ordinals by scope value.
+     */
+    private final Map<String, Integer> ordinals;
+
+    /**
+     * Compile the catalog.
+     *
+     * @param systemScopes the system scopes, in display order
+     * @param translator   the scope claim translation service
+     */
+    @SuppressWarnings("unchecked")
+    public ScopeCatalog(final Set<SystemScope> systemScopes, final ScopeClaimTranslationService translator) {
+        this.scopes = systemScopes.toArray(new SystemScope[systemScopes.size()]);
+        this.claims = new Set[scopes.length];
+        final Map<String, Integer> values = new HashMap<>();
+        for (int i = 0; i < scopes.length; i++) {
+            if (!values.containsKey(scopes[i].getValue())) {
+                values.put(scopes[i].getValue(), i);
+            }
+            claims[i] = ImmutableSet.copyOf(translator.getClaimsForScope(scopes[i].getValue()));
+        }
+        this.ordinals = ImmutableMap.copyOf(values);
+    }
+
+    /**
+     * Gets the ordinal of a scope.
+     *
+     * @param value the scope value
+     * @return the ordinal, or -1 if it is not a system scope
+     */
+    public int getOrdinal(final String value) {
+        final Integer ordinal = ordinals.get(value);
+        return ordinal != null ? ordinal : -1;
+    }
+
+    /**
+     * Encode the system scopes among the given ones as a bit set of ordinals.
+     *
+     * @param requested the scopes
+     * @return the bit set
+     */
+    public BitSet encode(final Set<SystemScope> requested) {
+        final BitSet bits = new BitSet(scopes.length);
+        for (final SystemScope scope : requested) {
+            final int ordinal = getOrdinal(scope.getValue());
+            if (ordinal >= 0 && scopes[ordinal].equals(scope)) {
+                bits.set(ordinal);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Decode a bit set of ordinals into the scopes, in display order.
+     *
+     * @param bits the bit set
+     * @return the scopes
+     */
+    public List<SystemScope> decode(final BitSet bits) {
+        final List<SystemScope> decoded = new ArrayList<>(bits.cardinality());
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            decoded.add(scopes[i]);
+        }
+        return decoded;
+    }
+
+    /**
+     * Sort scopes for display: system scopes in their display order,
+     * followed by any other scopes.
+     *
+     * @param requested the scopes
+     * @return the sorted scopes
+     */
+    public Set<SystemScope> sort(final Set<SystemScope> requested) {
+        final BitSet bits = encode(requested);
+        final Set<SystemScope> sorted = new LinkedHashSet<>(decode(bits));
+        if (sorted.size() < requested.size()) {
+            sorted.addAll(requested);
+        }
+        return sorted;
+    }
+
+    /**
+     * Gets the claims of a scope.
+     *
+     * @param value the scope value
+     * @return the claims, or null if it is not a system scope
+     */
+    public Set<String> getClaims(final String value) {
+        final int ordinal = getOrdinal(value);
+        return ordinal >= 0 ? claims[ordinal] : null;
+    }
+}
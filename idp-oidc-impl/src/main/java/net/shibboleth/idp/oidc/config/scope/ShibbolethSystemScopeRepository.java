@@ -16,27 +16,46 @@
  */
 package net.shibboleth.idp.oidc.config.scope;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.mitre.oauth2.model.SystemScope;
 import org.mitre.oauth2.repository.SystemScopeRepository;
+import org.mitre.openid.connect.service.ScopeClaimTranslationService;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Repository to define system scopes statically.
+ * Repository to define system scopes statically. Scopes are held in an immutable
+ * snapshot indexed by id and by value, whose iteration order is the display order
+ * of the configured scopes. Saving or removing a scope publishes a new snapshot,
+ * so readers never observe a scope set that is being modified. Each snapshot
+ * carries its own {@link ScopeCatalog}.
  */
 @Component("shibbolethSystemScopeRepository")
 @Primary
 public class ShibbolethSystemScopeRepository implements SystemScopeRepository {
 
     /**
-     * The Scopes.
+     * The current snapshot of the scopes.
      */
-    @Resource(name="supportedSystemScopes")
-    private Set<SystemScope> scopes = new HashSet<>();
+    private final AtomicReference<Snapshot> snapshot =
+        new AtomicReference<>(new Snapshot(Collections.<SystemScope>emptySet()));
+
+    /**
+     * The Scope claim translation service.
+     */
+    @Autowired
+    private ScopeClaimTranslationService scopeClaimTranslationService;
 
     /**
      * Instantiates a new Shibboleth system scope repository.
@@ -49,45 +68,137 @@ public class ShibbolethSystemScopeRepository implements SystemScopeRepository {
      * @param scs the scs
      */
     public ShibbolethSystemScopeRepository(final Set<SystemScope> scs) {
-        this.scopes = scs;
+        setScopes(scs);
+    }
+
+    /**
+     * Sets the scopes, in display order.
+     *
+     * @param scs the scs
+     */
+    @Resource(name="supportedSystemScopes")
+    public void setScopes(final Set<SystemScope> scs) {
+        this.snapshot.set(new Snapshot(scs));
     }
 
     @Override
     public Set<SystemScope> getAll() {
-        return this.scopes;
+        return this.snapshot.get().scopes;
     }
 
     @Override
     public SystemScope getById(final Long aLong) {
-        for (final SystemScope scope : scopes) {
-            if (scope.getId().equals(aLong)) {
-                return scope;
-            }
-        }
-        return null;
+        return this.snapshot.get().byId.get(aLong);
     }
 
     @Override
     public SystemScope getByValue(final String s) {
-        for (final SystemScope scope : scopes) {
-            if (scope.getValue().equals(s)) {
-                return scope;
-            }
+        return this.snapshot.get().byValue.get(s);
+    }
+
+    /**
+     * Gets the catalog of the current scopes, compiling it on first use.
+     *
+     * @return the catalog
+     */
+    public ScopeCatalog getCatalog() {
+        final Snapshot current = this.snapshot.get();
+        ScopeCatalog catalog = current.catalog;
+        if (catalog == null) {
+            catalog = new ScopeCatalog(current.scopes, scopeClaimTranslationService);
+            current.catalog = catalog;
         }
-        return null;
+        return catalog;
     }
 
     @Override
-    public void remove(final SystemScope systemScope) {
-        this.scopes.remove(systemScope);
+    public synchronized void remove(final SystemScope systemScope) {
+        final Set<SystemScope> scopes = new LinkedHashSet<>(this.snapshot.get().scopes);
+        scopes.remove(systemScope);
+        this.snapshot.set(new Snapshot(scopes));
     }
 
+    /**
+     * Save the scope, replacing the scope with the same id or value. A scope without
+     * an id is given the next free one.
+     *
+     * @param systemScope the system scope
+     * @return the saved scope
+     */
     @Override
-    public SystemScope save(final SystemScope systemScope) {
-        this.scopes.add(systemScope);
+    public synchronized SystemScope save(final SystemScope systemScope) {
+        final Snapshot current = this.snapshot.get();
+        if (systemScope.getId() == null) {
+            systemScope.setId(current.maxId + 1);
+        }
+        final Set<SystemScope> scopes = new LinkedHashSet<>(current.scopes.size() + 1);
+        for (final SystemScope scope : current.scopes) {
+            if (!Objects.equals(scope.getId(), systemScope.getId())
+                && !Objects.equals(scope.getValue(), systemScope.getValue())) {
+                scopes.add(scope);
+            }
+        }
+        scopes.add(systemScope);
+        this.snapshot.set(new Snapshot(scopes));
         return systemScope;
     }
 
+    /**
+     * An immutable version of the scopes and their indexes.
+     */
+    private static final class Snapshot {
+        /**
+         * The Scopes, in display order.
+         */
+        private final Set<SystemScope> scopes;
+
+        /**
+         * The scopes by id.
+         */
+        private final Map<Long, SystemScope> byId;
+
+        /**
+         * The scopes by value.
+         */
+        private final Map<String, SystemScope> byValue;
+
+        /**
+         * The largest id.
+         */
+        private final long maxId;
+
+        /**
+         * The catalog of the scopes, once compiled. Racing threads may each compile
+         * one, which is harmless as catalogs of the same scopes are equivalent.
+         */
+        private volatile ScopeCatalog catalog;
+
+        /**
+         * Instantiates a new Snapshot. When scopes share an id or a value,
+         * the last one is indexed.
+         *
+         * @param scs the scopes
+         */
+        Snapshot(final Set<SystemScope> scs) {
+            final Map<Long, SystemScope> ids = new HashMap<>();
+            final Map<String, SystemScope> values = new HashMap<>();
+            long max = 0;
+            for (final SystemScope scope : scs) {
+                if (scope.getId() != null) {
+                    ids.put(scope.getId(), scope);
+                    max = Math.max(max, scope.getId());
+                }
+                if (scope.getValue() != null) {
+                    values.put(scope.getValue(), scope);
+                }
+            }
+            this.scopes = ImmutableSet.copyOf(scs);
+            this.byId = ImmutableMap.copyOf(ids);
+            this.byValue = ImmutableMap.copyOf(values);
+            this.maxId = max;
+        }
+    }
+
     /**
      * The entry point of application.
      *
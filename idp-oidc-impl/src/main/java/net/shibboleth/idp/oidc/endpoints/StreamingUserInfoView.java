@@ -0,0 +1,110 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.endpoints;
+
+import com.google.gson.stream.JsonWriter;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfo;
+import org.mitre.openid.connect.service.ScopeClaimTranslationService;
+import org.mitre.openid.connect.view.HttpCodeView;
+import org.mitre.openid.connect.view.UserInfoView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.view.AbstractView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders userinfo as plain JSON the way {@link UserInfoView} does, but writes the
+ * claims allowed by the granted scopes straight to the response stream instead of
+ * building and filtering a JSON tree first. Responses shaped by a claims request,
+ * and userinfo other than {@link ShibbolethUserInfo}, are left to {@link UserInfoView}.
+ *
+ * <p>The ETag of the response is passed in the model and set here, during dispatch,
+ * along with the status of a model that only carries a {@link HttpCodeView#CODE}.</p>
+ */
+@Component(StreamingUserInfoView.VIEWNAME)
+public class StreamingUserInfoView extends AbstractView {
+    /** The view name. */
+    public static final String VIEWNAME = "oidcStreamingUserInfoView";
+
+    /** The model attribute of the ETag of the response. */
+    public static final String ETAG = "etag";
+
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(StreamingUserInfoView.class);
+
+    /**
+     * The Translator.
+     */
+    @Autowired
+    private ScopeClaimTranslationService translator;
+
+    /**
+     * The view that renders claims requests.
+     */
+    @Autowired
+    @Qualifier(UserInfoView.VIEWNAME)
+    private UserInfoView userInfoView;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void renderMergedOutputModel(final Map<String, Object> model, final HttpServletRequest request,
+                                           final HttpServletResponse response) throws Exception {
+        final Object etag = model.get(ETAG);
+        if (etag != null) {
+            response.setHeader(HttpHeaders.ETAG, (String) etag);
+        }
+        final Object code = model.get(HttpCodeView.CODE);
+        if (code instanceof HttpStatus) {
+            response.setStatus(((HttpStatus) code).value());
+            return;
+        }
+
+        final Object userInfo = model.get(UserInfoView.USER_INFO);
+        if (!(userInfo instanceof ShibbolethUserInfo)
+            || model.get(UserInfoView.AUTHORIZED_CLAIMS) != null
+            || model.get(UserInfoView.REQUESTED_CLAIMS) != null) {
+            log.debug("Rendering userinfo with {}", UserInfoView.VIEWNAME);
+            userInfoView.render(model, request, response);
+            return;
+        }
+
+        final Set<String> scope = (Set<String>) model.get(UserInfoView.SCOPE);
+        final Set<String> allowed = translator.getClaimsForScopeSet(scope);
+
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+
+        final JsonWriter out = new JsonWriter(
+            new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+        ((ShibbolethUserInfo) userInfo).writeJson(out, allowed);
+        out.flush();
+    }
+}
@@ -1,9 +1,9 @@
 /*
- * Licensed to the University Corporation for Advanced Internet Development, 
- * Inc. (UCAID) under one or more contributor license agreements. See the 
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
  * NOTICE file distributed with this work for additional information regarding
- * copyright ownership. The UCAID licenses this file to You under the Apache 
- * License, Version 2.0 (the "License"); you may not use this file except in 
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
  * compliance with the License. You may obtain a copy of the License at
  *
  * http://www.apache.org/licenses/LICENSE-2.0
@@ -16,17 +16,394 @@
  */
 package net.shibboleth.idp.oidc.endpoints;
 
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.gson.stream.JsonWriter;
+import net.shibboleth.idp.oidc.client.userinfo.AttributesUnavailableException;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfo;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoService;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.mitre.oauth2.service.SystemScopeService;
+import org.mitre.openid.connect.model.UserInfo;
+import org.mitre.openid.connect.request.ConnectRequestParameters;
+import org.mitre.openid.connect.service.ScopeClaimTranslationService;
+import org.mitre.openid.connect.view.HttpCodeView;
+import org.mitre.openid.connect.view.UserInfoJWTView;
+import org.mitre.openid.connect.view.UserInfoView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A userinfo endpoint for openid connect
- * that remaps the {@link org.mitre.openid.connect.web.UserInfoEndpoint}.
+ * A userinfo endpoint for openid connect, equivalent to the
+ * {@link org.mitre.openid.connect.web.UserInfoEndpoint}, that releases the servlet
+ * thread while attributes are resolved. Resolution runs on the bounded
+ * {@code oidcUserInfoExecutor}; when that executor is saturated, resolution
+ * takes longer than the configured timeout, or the attributes are unavailable,
+ * the request fails fast with a 503.
+ *
+ * <p>Plain JSON responses carry an ETag computed from the released claims. The ETag
+ * is remembered per user, client, scopes and accepted media types for a while, so that
+ * a request whose {@code If-None-Match} matches it is answered with a 304 without
+ * resolving attributes at all.</p>
  */
 @Controller("oidcUserInfoEndpoint")
-@RequestMapping("/oidc/" + org.mitre.openid.connect.web.UserInfoEndpoint.URL)
-public class UserInfoEndpoint extends org.mitre.openid.connect.web.UserInfoEndpoint {
+@RequestMapping(UserInfoEndpoint.URL)
+public class UserInfoEndpoint {
     /** URL endpoint for userinfo used to map requests. */
     public static final String URL = "/oidc/" + org.mitre.openid.connect.web.UserInfoEndpoint.URL;
-}
 
+    /**
+     * The Log.
+     */
+    private final Logger log = LoggerFactory.getLogger(UserInfoEndpoint.class);
+
+    /**
+     * The User info service.
+     */
+    @Autowired
+    private ShibbolethUserInfoService userInfoService;
+
+    /**
+     * The Client service.
+     */
+    @Autowired
+    private ClientDetailsEntityService clientService;
+
+    /**
+     * The Executor.
+     */
+    @Autowired
+    @Qualifier("oidcUserInfoExecutor")
+    private AsyncTaskExecutor executor;
+
+    /**
+     * Whether userinfo is built on the executor rather than on the servlet thread.
+     */
+    private boolean async = true;
+
+    /**
+     * How long to wait for the userinfo, in milliseconds.
+     */
+    private long timeout = 10000;
+
+    /**
+     * The Translator.
+     */
+    @Autowired
+    private ScopeClaimTranslationService translator;
+
+    /**
+     * The last ETag per user, client, scopes and accept header.
+     */
+    private Cache<List<Object>, String> etagCache;
+
+    /**
+     * How long ETags are remembered, in milliseconds; zero disables them.
+     */
+    private long etagTimeToLive = 60000;
+
+    /**
+     * The maximum number of remembered ETags.
+     */
+    private long etagCacheMaximumSize = 10000;
+
+    /**
+     * Build the ETag cache.
+     */
+    @PostConstruct
+    public void initialize() {
+        if (etagTimeToLive > 0) {
+            etagCache = CacheBuilder.newBuilder()
+                .maximumSize(etagCacheMaximumSize)
+                .expireAfterWrite(etagTimeToLive, TimeUnit.MILLISECONDS)
+                .build();
+        }
+    }
+
+    /**
+     * Get the userinfo of the authenticated user.
+     *
+     * @param claimsRequestJsonString the claims request
+     * @param acceptHeader            the accept header
+     * @param ifNoneMatch             the ETags the client already holds
+     * @param auth                    the authentication
+     * @return the deferred view
+     */
+    @PreAuthorize("hasRole('ROLE_USER') and #oauth2.hasScope('" + SystemScopeService.OPENID_SCOPE + "')")
+    @RequestMapping(method = {RequestMethod.GET, RequestMethod.POST},
+        produces = {MediaType.APPLICATION_JSON_VALUE, UserInfoJWTView.JOSE_MEDIA_TYPE_VALUE})
+    public DeferredResult<ModelAndView> getInfo(
+        @RequestParam(value = ConnectRequestParameters.CLAIMS, required = false) final String claimsRequestJsonString,
+        @RequestHeader(value = HttpHeaders.ACCEPT, required = false) final String acceptHeader,
+        @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) final String ifNoneMatch,
+        final OAuth2Authentication auth) {
+
+        final DeferredResult<ModelAndView> result =
+            new DeferredResult<>(timeout, status(HttpStatus.SERVICE_UNAVAILABLE));
+
+        if (auth == null) {
+            log.error("getInfo failed; no principal. Requester is not authorized.");
+            result.setResult(status(HttpStatus.FORBIDDEN));
+            return result;
+        }
+
+        final List<Object> etagKey = getEtagKey(claimsRequestJsonString, acceptHeader, auth);
+        if (etagKey != null && ifNoneMatch != null) {
+            final String etag = etagCache.getIfPresent(etagKey);
+            if (etag != null && matches(ifNoneMatch, etag)) {
+                log.debug("Userinfo of {} is not modified", auth.getName());
+                result.setResult(notModified(etag));
+                return result;
+            }
+        }
+
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.setResult(buildUserInfoView(claimsRequestJsonString, acceptHeader, auth,
+                        etagKey, ifNoneMatch));
+                } catch (final AttributesUnavailableException e) {
+                    log.warn("Attributes of {} are unavailable: {}", auth.getName(), e.getMessage());
+                    result.setResult(status(HttpStatus.SERVICE_UNAVAILABLE));
+                } catch (final Exception e) {
+                    log.error("Could not build userinfo for {}", auth.getName(), e);
+                    result.setResult(status(HttpStatus.INTERNAL_SERVER_ERROR));
+                }
+            }
+        };
+
+        if (!async) {
+            task.run();
+            return result;
+        }
+        try {
+            executor.execute(task);
+        } catch (final TaskRejectedException e) {
+            log.warn("Userinfo executor is saturated; rejecting request for {}", auth.getName());
+            result.setResult(status(HttpStatus.SERVICE_UNAVAILABLE));
+        }
+        return result;
+    }
+
+    /**
+     * Build the userinfo view for the authenticated user, negotiating between
+     * plain JSON and a signed or encrypted JWT.
+     *
+     * @param claimsRequestJsonString the claims request
+     * @param acceptHeader            the accept header
+     * @param auth                    the authentication
+     * @param etagKey                 the key of the ETag, or null if the response carries none
+     * @param ifNoneMatch             the ETags the client already holds
+     * @return the model and view
+     * @throws IOException if the ETag cannot be computed
+     */
+    private ModelAndView buildUserInfoView(final String claimsRequestJsonString, final String acceptHeader,
+                                           final OAuth2Authentication auth, final List<Object> etagKey,
+                                           final String ifNoneMatch) throws IOException {
+        final String username = auth.getName();
+        final UserInfo userInfo = userInfoService.getByUsernameAndClientId(username, auth.getOAuth2Request(),
+            !Strings.isNullOrEmpty(claimsRequestJsonString));
+
+        if (userInfo == null) {
+            log.error("getInfo failed; user not found: {}", username);
+            return status(HttpStatus.NOT_FOUND);
+        }
+
+        final ModelAndView mav = new ModelAndView();
+        mav.addObject(UserInfoView.SCOPE, auth.getOAuth2Request().getScope());
+        mav.addObject(UserInfoView.AUTHORIZED_CLAIMS,
+            auth.getOAuth2Request().getExtensions().get(ConnectRequestParameters.CLAIMS));
+        if (!Strings.isNullOrEmpty(claimsRequestJsonString)) {
+            mav.addObject(UserInfoView.REQUESTED_CLAIMS, claimsRequestJsonString);
+        }
+        mav.addObject(UserInfoView.USER_INFO, userInfo);
+
+        final ClientDetailsEntity client = clientService.loadClientByClientId(auth.getOAuth2Request().getClientId());
+        mav.addObject(UserInfoJWTView.CLIENT, client);
+
+        final List<MediaType> mediaTypes = MediaType.parseMediaTypes(acceptHeader);
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+
+        // a client registered for a signed or encrypted response gets a JWT unless it asks for plain JSON,
+        // and any other client gets plain JSON unless it asks for a JWT
+        final boolean clientPrefersJwt = client.getUserInfoSignedResponseAlg() != null
+            || client.getUserInfoEncryptedResponseAlg() != null
+            || client.getUserInfoEncryptedResponseEnc() != null;
+        final MediaType preferred = clientPrefersJwt ? UserInfoJWTView.JOSE_MEDIA_TYPE : MediaType.APPLICATION_JSON;
+        final MediaType other = clientPrefersJwt ? MediaType.APPLICATION_JSON : UserInfoJWTView.JOSE_MEDIA_TYPE;
+
+        MediaType selected = preferred;
+        for (final MediaType m : mediaTypes) {
+            if (!m.isWildcardType() && m.isCompatibleWith(preferred)) {
+                break;
+            }
+            if (!m.isWildcardType() && m.isCompatibleWith(other)) {
+                selected = other;
+                break;
+            }
+        }
+        if (selected.equals(UserInfoJWTView.JOSE_MEDIA_TYPE)) {
+            mav.setViewName(UserInfoJWTView.VIEWNAME);
+            return mav;
+        }
+        mav.setViewName(StreamingUserInfoView.VIEWNAME);
+
+        if (etagKey != null && userInfo instanceof ShibbolethUserInfo) {
+            final String etag = computeEtag((ShibbolethUserInfo) userInfo, auth.getOAuth2Request().getScope());
+            etagCache.put(etagKey, etag);
+            if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+                log.debug("Userinfo of {} is not modified", username);
+                return notModified(etag);
+            }
+            mav.addObject(StreamingUserInfoView.ETAG, etag);
+        }
+        return mav;
+    }
+
+    /**
+     * Gets the key of the ETag of the response: the user, the client, the scopes and the
+     * accept header, which together determine the view and the claims released.
+     * Responses shaped by a claims request carry no ETag.
+     *
+     * @param claimsRequestJsonString the claims request
+     * @param acceptHeader            the accept header
+     * @param auth                    the authentication
+     * @return the key, or null if the response carries no ETag
+     */
+    private List<Object> getEtagKey(final String claimsRequestJsonString, final String acceptHeader,
+                                    final OAuth2Authentication auth) {
+        final OAuth2Request request = auth.getOAuth2Request();
+        if (etagCache == null || !Strings.isNullOrEmpty(claimsRequestJsonString)
+            || request.getExtensions().get(ConnectRequestParameters.CLAIMS) != null) {
+            return null;
+        }
+        return ImmutableList.<Object>of(auth.getName(), request.getClientId(), request.getScope(),
+            Strings.nullToEmpty(acceptHeader));
+    }
+
+    /**
+     * Compute the ETag of the claims released for the scopes.
+     *
+     * @param userInfo the user info
+     * @param scope    the scopes
+     * @return the quoted ETag
+     * @throws IOException if the claims cannot be written
+     */
+    private String computeEtag(final ShibbolethUserInfo userInfo, final Set<String> scope) throws IOException {
+        final StringWriter claims = new StringWriter();
+        userInfo.writeJson(new JsonWriter(claims), translator.getClaimsForScopeSet(scope));
+        return '"' + Hashing.murmur3_128().hashString(claims.toString(), StandardCharsets.UTF_8).toString() + '"';
+    }
+
+    /**
+     * Whether the {@code If-None-Match} header matches the ETag, comparing weakly.
+     *
+     * @param ifNoneMatch the header
+     * @param etag        the ETag
+     * @return true if it matches
+     */
+    private static boolean matches(final String ifNoneMatch, final String etag) {
+        for (final String candidate : Splitter.on(',').trimResults().omitEmptyStrings().split(ifNoneMatch)) {
+            if ("*".equals(candidate) || etag.equals(candidate.startsWith("W/") ? candidate.substring(2) : candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Build a view that only sets the response status.
+     *
+     * @param status the status
+     * @return the model and view
+     */
+    private static ModelAndView status(final HttpStatus status) {
+        return new ModelAndView(HttpCodeView.VIEWNAME, HttpCodeView.CODE, status);
+    }
+
+    /**
+     * Build a view that answers with a 304 carrying the ETag. The header is left to the
+     * view, since the view may be built off the servlet thread.
+     *
+     * @param etag the ETag
+     * @return the model and view
+     */
+    private static ModelAndView notModified(final String etag) {
+        final ModelAndView mav = new ModelAndView(StreamingUserInfoView.VIEWNAME,
+            HttpCodeView.CODE, HttpStatus.NOT_MODIFIED);
+        mav.addObject(StreamingUserInfoView.ETAG, etag);
+        return mav;
+    }
+
+    /**
+     * Sets whether userinfo is built on the executor.
+     *
+     * @param asyncEnabled the async enabled
+     */
+    @Value("%{oidc.userinfo.async.enabled:true}")
+    public void setAsync(final boolean asyncEnabled) {
+        this.async = asyncEnabled;
+    }
+
+    /**
+     * Sets how long to wait for the userinfo.
+     *
+     * @param timeoutMillis the timeout in milliseconds
+     */
+    @Value("%{oidc.userinfo.async.timeout:10000}")
+    public void setTimeout(final long timeoutMillis) {
+        this.timeout = timeoutMillis;
+    }
+
+    /**
+     * Sets how long ETags are remembered.
+     *
+     * @param ttl the time to live in milliseconds
+     */
+    @Value("%{oidc.userinfo.etag.ttl:60000}")
+    public void setEtagTimeToLive(final long ttl) {
+        this.etagTimeToLive = ttl;
+    }
+
+    /**
+     * Sets the maximum number of remembered ETags.
+     *
+     * @param size the size
+     */
+    @Value("%{oidc.userinfo.etag.maxSize:10000}")
+    public void setEtagCacheMaximumSize(final long size) {
+        this.etagCacheMaximumSize = size;
+    }
+}
@@ -23,11 +23,9 @@ import net.shibboleth.idp.authn.context.RequestedPrincipalContext;
 import net.shibboleth.idp.oidc.config.OIDCConstants;
 import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.idp.saml.authn.principal.AuthnContextClassRefPrincipal;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
 import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
@@ -59,12 +57,6 @@ public class BuildAuthenticationContextAction extends AbstractProfileAction {
      */
     private Map<AuthnContextClassRefPrincipal, Integer> authenticationPrincipalWeightMap;
 
-    /**
-     * The Client service.
-     */
-    @Autowired
-    private ClientDetailsEntityService clientService;
-
     /**
      * Instantiates a new authentication context action.
      */
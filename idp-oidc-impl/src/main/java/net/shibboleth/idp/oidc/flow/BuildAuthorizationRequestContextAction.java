@@ -110,6 +110,7 @@ public class BuildAuthorizationRequestContextAction extends AbstractProfileActio
         }
         
         final ClientDetailsEntity client = loadClientObject(authZContext);
+        authZContext.setClient(client);
         ensureRedirectUriIsAuthorized(authorizationRequest, client);
         
         log.debug("Found client {}.", client.getClientId());
@@ -208,14 +209,16 @@ public class BuildAuthorizationRequestContextAction extends AbstractProfileActio
     }
 
     /**
-     * Load client object client details entity.
+     * Load client object client details entity, and record the load on the context.
      *
      * @param authorizationRequest the authorization request
      * @return the client details entity
      */
     private ClientDetailsEntity loadClientObject(final OIDCAuthorizationRequestContext authorizationRequest) {
         log.debug("Loading client by id {}", authorizationRequest.getClientId());
-        return clientService.loadClientByClientId(authorizationRequest.getClientId());
+        final ClientDetailsEntity client = clientService.loadClientByClientId(authorizationRequest.getClientId());
+        authorizationRequest.recordClientLoad();
+        return client;
     }
 
     /**
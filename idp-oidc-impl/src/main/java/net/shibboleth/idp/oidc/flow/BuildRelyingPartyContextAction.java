@@ -22,11 +22,9 @@ import net.shibboleth.idp.profile.AbstractProfileAction;
 import net.shibboleth.idp.profile.config.ProfileConfiguration;
 import net.shibboleth.idp.profile.context.RelyingPartyContext;
 import org.mitre.oauth2.model.ClientDetailsEntity;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
 import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
@@ -47,12 +45,6 @@ public class BuildRelyingPartyContextAction extends AbstractProfileAction {
      */
     private ProfileConfiguration profileConfiguration;
 
-    /**
-     * The Client service.
-     */
-    @Autowired
-    private ClientDetailsEntityService clientService;
-
     /**
      * Sets profile configuration.
      *
@@ -80,7 +72,7 @@ public class BuildRelyingPartyContextAction extends AbstractProfileAction {
             return Events.Failure.event(this);
         }
 
-        final ClientDetailsEntity client = this.clientService.loadClientByClientId(authRequest.getClientId());
+        final ClientDetailsEntity client = authZContext.getClient();
 
         if (client == null) {
             log.warn("Client configuration could not be loaded from session");
@@ -23,13 +23,11 @@ import net.shibboleth.idp.session.SessionException;
 import net.shibboleth.idp.session.context.SessionContext;
 import org.joda.time.DateTime;
 import org.mitre.oauth2.model.ClientDetailsEntity;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.openid.connect.request.ConnectRequestParameters;
 import org.opensaml.messaging.context.navigate.ChildContextLookup;
 import org.opensaml.profile.context.ProfileRequestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
 
@@ -56,12 +54,6 @@ public class CheckAuthenticationRequiredAction extends AbstractProfileAction {
     private final Function<ProfileRequestContext, SessionContext> sessionContextFunction =
             new ChildContextLookup(SessionContext.class, false);
 
-    /**
-     * The Client service.
-     */
-    @Autowired
-    private ClientDetailsEntityService clientService;
-
     /**
      * Gets session bound to the idp.
      *
@@ -100,8 +92,7 @@ public class CheckAuthenticationRequiredAction extends AbstractProfileAction {
                     return Events.Failure.event(this);
                 }
 
-                final ClientDetailsEntity client = clientService.loadClientByClientId(
-                        authZContext.getAuthorizationRequest().getClientId());
+                final ClientDetailsEntity client = authZContext.getClient();
                 if (client == null) {
                     log.warn("No client could be located based on the authorization request");
                     return Events.Failure.event(this);
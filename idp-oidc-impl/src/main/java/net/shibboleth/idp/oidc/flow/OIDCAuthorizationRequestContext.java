@@ -18,6 +18,7 @@ package net.shibboleth.idp.oidc.flow;
 
 import com.google.common.base.MoreObjects;
 import net.shibboleth.idp.oidc.config.OIDCConstants;
+import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.openid.connect.request.ConnectRequestParameters;
 import org.opensaml.messaging.context.BaseContext;
 import org.springframework.security.oauth2.provider.AuthorizationRequest;
@@ -40,6 +41,16 @@ public class OIDCAuthorizationRequestContext extends BaseContext {
     @Nonnull
     private AuthorizationRequest authorizationRequest;
 
+    /**
+     * The Client, loaded once for the whole flow.
+     */
+    private ClientDetailsEntity client;
+
+    /**
+     * The number of times the client was loaded from the client service for this request.
+     */
+    private int clientLoadCount;
+
     /**
      * Gets authorization request.
      *
@@ -58,6 +69,41 @@ public class OIDCAuthorizationRequestContext extends BaseContext {
         this.authorizationRequest = req;
     }
 
+    /**
+     * Gets the client of the authorization request.
+     *
+     * @return the client
+     */
+    public ClientDetailsEntity getClient() {
+        return client;
+    }
+
+    /**
+     * Sets the client of the authorization request, once it is loaded.
+     *
+     * @param loadedClient the loaded client
+     */
+    public void setClient(final ClientDetailsEntity loadedClient) {
+        this.client = loadedClient;
+    }
+
+    /**
+     * Record that the client was loaded from the client service for this request.
+     */
+    public void recordClientLoad() {
+        this.clientLoadCount++;
+    }
+
+    /**
+     * Gets the number of times the client was loaded from the client service
+     * for this request, which is expected to be one.
+     *
+     * @return the client load count
+     */
+    public int getClientLoadCount() {
+        return clientLoadCount;
+    }
+
     /**
      * Gets client id.
      *
@@ -17,20 +17,25 @@
 package net.shibboleth.idp.oidc.flow;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.Sets;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import net.shibboleth.idp.attribute.context.AttributeContext;
 import net.shibboleth.idp.authn.context.SubjectContext;
 import net.shibboleth.idp.oidc.OIDCException;
+import net.shibboleth.idp.oidc.client.userinfo.AttributesUnavailableException;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfo;
 import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoService;
 import net.shibboleth.idp.oidc.client.userinfo.authn.SpringSecurityAuthenticationToken;
 import net.shibboleth.idp.oidc.client.userinfo.authn.SpringSecurityAuthenticationTokenFactory;
 import net.shibboleth.idp.oidc.config.OIDCConstants;
+import net.shibboleth.idp.oidc.config.scope.ScopeCatalog;
+import net.shibboleth.idp.oidc.config.scope.ShibbolethSystemScopeRepository;
+import net.shibboleth.idp.oidc.util.IdentifierGenerator;
 import net.shibboleth.idp.oidc.util.OIDCUtils;
 import net.shibboleth.idp.profile.AbstractProfileAction;
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
 import org.mitre.oauth2.model.ClientDetailsEntity;
 import org.mitre.oauth2.model.SystemScope;
-import org.mitre.oauth2.service.ClientDetailsEntityService;
 import org.mitre.oauth2.service.SystemScopeService;
 import org.mitre.openid.connect.model.UserInfo;
 import org.mitre.openid.connect.service.ScopeClaimTranslationService;
@@ -49,11 +54,11 @@ import org.springframework.webflow.execution.Event;
 import org.springframework.webflow.execution.RequestContext;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -67,16 +72,16 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     private final Logger log = LoggerFactory.getLogger(PreAuthorizeUserApprovalAction.class);
 
     /**
-     * The Client service.
+     * The Scope service.
      */
     @Autowired
-    private ClientDetailsEntityService clientService;
+    private SystemScopeService scopeService;
 
     /**
-     * The Scope service.
+     * The System scope repository.
      */
     @Autowired
-    private SystemScopeService scopeService;
+    private ShibbolethSystemScopeRepository systemScopeRepository;
 
     /**
      * The Scope claim translation service.
@@ -103,6 +108,12 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     @Autowired
     private RedirectResolver redirectResolver;
 
+    /**
+     * The Id generator.
+     */
+    @Autowired
+    private IdentifierGenerator idGenerator;
+
     /**
      * Instantiates a Pre-authorize user approval action.
      */
@@ -133,17 +144,10 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
                 .splitToList(Strings.nullToEmpty(prompt));
         */
 
-        final ClientDetailsEntity client;
-
-        try {
-            client = clientService.loadClientByClientId(authRequest.getClientId());
-            if (client == null) {
-                log.error("Could not find client {}", authRequest.getClientId());
-                return Events.ClientNotFound.event(this);
-            }
-        } catch (final Exception e) {
-            log.error(e.getMessage(), e);
-            return Events.BadRequest.event(this);
+        final ClientDetailsEntity client = authZContext.getClient();
+        if (client == null) {
+            log.error("Could not find client {}", authRequest.getClientId());
+            return Events.ClientNotFound.event(this);
         }
 
         /*
@@ -154,10 +158,11 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
         */
 
         final Authentication authentication =
-            SpringSecurityAuthenticationTokenFactory.buildAuthentication(profileRequestContext, client);
+            SpringSecurityAuthenticationTokenFactory.buildAuthentication(profileRequestContext, client, idGenerator);
         storeSpringSecurityAuthenticationContext(profileRequestContext, springRequestContext, authentication);
-        storeAuthenticationTimeIntoAuthorizationRequest(authentication, authRequest);
-        final OIDCResponse response = buildOpenIdConnectResponse(authRequest, client);
+        storeAuthenticationIntoAuthorizationRequest(authentication, authRequest);
+        final OIDCResponse response = buildOpenIdConnectResponse(authRequest, client,
+            getAttributeContext(profileRequestContext));
         final OIDCAuthorizationResponseContext responseContext = new OIDCAuthorizationResponseContext();
         responseContext.setOidcResponse(response);
         profileRequestContext.addSubcontext(responseContext);
@@ -165,15 +170,23 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     }
 
     /**
-     * Store authentication time into authorization request.
+     * Store authentication time, acr and amr into authorization request.
+     * The extensions are carried over into the authentication holder, where
+     * id token creation reads them back without parsing authorities.
      *
      * @param authentication the authentication
      * @param authRequest    the auth request
      */
-    private static void storeAuthenticationTimeIntoAuthorizationRequest(final Authentication authentication,
-                                                                        final AuthorizationRequest authRequest) {
-        authRequest.getExtensions().put(OIDCConstants.AUTH_TIME,
-            ((SpringSecurityAuthenticationToken) authentication).getAuthenticationDateTime().getMillis());
+    private static void storeAuthenticationIntoAuthorizationRequest(final Authentication authentication,
+                                                                    final AuthorizationRequest authRequest) {
+        final SpringSecurityAuthenticationToken token = (SpringSecurityAuthenticationToken) authentication;
+        authRequest.getExtensions().put(OIDCConstants.AUTH_TIME, token.getAuthenticationDateTime().getMillis());
+        if (token.getAuthenticationClassRef() != null) {
+            authRequest.getExtensions().put(OIDCConstants.ACR, token.getAuthenticationClassRef());
+        }
+        if (token.getAuthenticationMethodRef() != null) {
+            authRequest.getExtensions().put(OIDCConstants.AMR, token.getAuthenticationMethodRef());
+        }
     }
 
     /**
@@ -203,12 +216,14 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     /**
      * Build open id connect response.
      *
-     * @param authRequest the auth request
-     * @param client      the client
+     * @param authRequest      the auth request
+     * @param client           the client
+     * @param attributeContext the attributes resolved by the login flow, if any
      * @return the open id connect response
      */
     private OIDCResponse buildOpenIdConnectResponse(final AuthorizationRequest authRequest,
-                                                    final ClientDetailsEntity client) {
+                                                    final ClientDetailsEntity client,
+                                                    @Nullable final AttributeContext attributeContext) {
         final OIDCResponse response = new OIDCResponse();
         response.setAuthorizationRequest(authRequest);
         response.setClient(client);
@@ -226,7 +241,8 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
         response.setScopes(sortedScopes);
         log.debug("Response will contain the following scopes {}", sortedScopes);
 
-        final Map<String, Map<String, String>> claimsForScopes = getUserInfoClaimsForScopes(sortedScopes, client);
+        final Map<String, Map<String, String>> claimsForScopes = getUserInfoClaimsForScopes(sortedScopes, client,
+            attributeContext);
         response.setClaims(claimsForScopes);
         log.debug("Response will contain the following claims for scopes {}", claimsForScopes.keySet());
 
@@ -248,35 +264,52 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
     /**
      * Gets user info claims for scopes.
      *
-     * @param sortedScopes the sorted scopes
-     * @param client       the client
+     * @param sortedScopes     the sorted scopes
+     * @param client           the client
+     * @param attributeContext the attributes resolved by the login flow, if any
      * @return the user info claims for scopes
      */
     private Map<String, Map<String, String>> getUserInfoClaimsForScopes(final Set<SystemScope> sortedScopes,
-                                                                        final ClientDetailsEntity client) {
+                                                                        final ClientDetailsEntity client,
+                                                                        @Nullable final AttributeContext
+                                                                            attributeContext) {
 
         final SecurityContext securityContext = SecurityContextHolder.getContext();
         final Authentication authentication = securityContext.getAuthentication();
         final SubjectContext context = (SubjectContext) authentication.getPrincipal();
 
-        final UserInfo user = userInfoService.getByUsernameAndClientId(context.getPrincipalName(), client.getClientId());
+        UserInfo user = null;
+        if (attributeContext != null) {
+            log.debug("Building UserInfo from the attributes released by the login flow");
+            user = userInfoService.getByUsernameAndClient(context.getPrincipalName(), client,
+                attributeContext.getIdPAttributes().values());
+        } else {
+            try {
+                user = userInfoService.getByUsernameAndClient(context.getPrincipalName(), client);
+            } catch (final AttributesUnavailableException e) {
+                log.warn("Claim values cannot be displayed: {}", e.getMessage());
+            }
+        }
         log.debug("Located UserInfo object from principal name {}", context.getPrincipalName());
 
         final Map<String, Map<String, String>> claimsForScopes = new HashMap<>();
         if (user != null) {
-            final JsonObject userJson = user.toJson();
-            log.debug("UserInfo translated to JSON is:\n{}", userJson);
-
+            // claims are read off the userinfo directly; only other implementations are translated to JSON
+            final JsonObject userJson = user instanceof ShibbolethUserInfo ? null : user.toJson();
+            final ScopeCatalog catalog = systemScopeRepository.getCatalog();
             for (final SystemScope systemScope : sortedScopes) {
                 final Map<String, String> claimValues = new HashMap<>();
 
-                final Set<String> claims = scopeClaimTranslationService.getClaimsForScope(systemScope.getValue());
+                Set<String> claims = catalog.getClaims(systemScope.getValue());
+                if (claims == null) {
+                    claims = scopeClaimTranslationService.getClaimsForScope(systemScope.getValue());
+                }
                 log.debug("Processing system scope {} for the following claims: {}", systemScope.getValue(), claims);
                 for (final String claim : claims) {
-                    final JsonElement element = userJson.get(claim);
-                    if (userJson.has(claim) && element.isJsonPrimitive()) {
-                        claimValues.put(claim, element.getAsString());
-                        log.debug("Added claim {} with value {}", claim, element.getAsString());
+                    final String value = getClaimValue(user, userJson, claim);
+                    if (value != null) {
+                        claimValues.put(claim, value);
+                        log.debug("Added claim {} with value {}", claim, value);
                     }
                 }
                 log.debug("Final claims for system scope {} are {}", systemScope.getValue(), claimValues);
@@ -286,6 +319,39 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
         return claimsForScopes;
     }
 
+    /**
+     * Gets the value of a claim if it is a primitive.
+     *
+     * @param user     the user
+     * @param userJson the user translated to JSON, unless it is a {@link ShibbolethUserInfo}
+     * @param claim    the claim
+     * @return the claim value, or null
+     */
+    private static String getClaimValue(final UserInfo user, @Nullable final JsonObject userJson,
+                                        final String claim) {
+        if (userJson == null) {
+            return ((ShibbolethUserInfo) user).getClaimValue(claim);
+        }
+        final JsonElement element = userJson.get(claim);
+        return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+    }
+
+    /**
+     * Gets the attribute context populated by the attribute resolution and filtering
+     * of the login flow.
+     *
+     * @param profileRequestContext the profile request context
+     * @return the attribute context, or null if attributes were not resolved
+     */
+    @Nullable
+    private AttributeContext getAttributeContext(@Nonnull final ProfileRequestContext profileRequestContext) {
+        final RelyingPartyContext rpc = profileRequestContext.getSubcontext(RelyingPartyContext.class);
+        if (rpc == null) {
+            return null;
+        }
+        return rpc.getSubcontext(AttributeContext.class);
+    }
+
     /**
      * Gets system scopes.
      *
@@ -293,18 +359,9 @@ public class PreAuthorizeUserApprovalAction extends AbstractProfileAction {
      * @return the system scopes
      */
     private Set<SystemScope> getSystemScopes(final Set<SystemScope> scopes) {
-        final Set<SystemScope> sortedScopes = new LinkedHashSet<>(scopes.size());
-        final Set<SystemScope> systemScopes = scopeService.getAll();
-
-        // sort scopes for display based on the inherent order of system scopes
-        for (final SystemScope systemScope : systemScopes) {
-            if (scopes.contains(systemScope)) {
-                sortedScopes.add(systemScope);
-            }
-        }
-        // add in any scopes that aren't system scopes to the end of the list
-        sortedScopes.addAll(Sets.difference(scopes, systemScopes));
-        return sortedScopes;
+        // sort scopes for display based on the inherent order of system scopes,
+        // with any scopes that aren't system scopes at the end of the list
+        return systemScopeRepository.getCatalog().sort(scopes);
     }
 
 
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.util;
+
+/**
+ * A circuit breaker around calls to a backend that may become unavailable.
+ * After a number of consecutive failures the breaker opens and calls are refused
+ * without reaching the backend. Once the open period has passed, a single call is
+ * let through as a probe: its success closes the breaker, its failure opens it again.
+ */
+public final class CircuitBreaker {
+    /**
+     * The state of the breaker.
+     */
+    public enum State {
+        /** Calls pass. */
+        CLOSED,
+        /** Calls are refused. */
+        OPEN,
+        /** A single probe is in flight. */
+        HALF_OPEN
+    }
+
+    /**
+     * The Name.
+     */
+    private final String name;
+
+    /**
+     * The number of consecutive failures that opens the breaker.
+     */
+    private final int failureThreshold;
+
+    /**
+     * How long the breaker stays open before probing, in milliseconds.
+     */
+    private final long openDuration;
+
+    /**
+     * The State.
+     */
+    private State state = State.CLOSED;
+
+    /**
+     * The number of consecutive failures.
+     */
+    private int failures;
+
+    /**
+     * When the breaker last opened.
+     */
+    private long openedAt;
+
+    /**
+     * Instantiates a new Circuit breaker.
+     *
+     * @param breakerName       the name of the backend
+     * @param threshold         the number of consecutive failures that opens the breaker
+     * @param openDurationMillis how long the breaker stays open before probing, in milliseconds
+     */
+    public CircuitBreaker(final String breakerName, final int threshold, final long openDurationMillis) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be at least 1");
+        }
+        this.name = breakerName;
+        this.failureThreshold = threshold;
+        this.openDuration = openDurationMillis;
+    }
+
+    /**
+     * Whether a call may go to the backend. When the open period has passed,
+     * the first caller is let through as the probe and the breaker turns half-open.
+     *
+     * @return true if the call may proceed
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openDuration) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Record a successful call, which closes the breaker.
+     */
+    public synchronized void recordSuccess() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Record a failed call. The breaker opens when the probe fails or when
+     * the failures reach the threshold.
+     *
+     * @return true if the breaker opened
+     */
+    public synchronized boolean recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets state.
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Gets name.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name + " circuit breaker (" + getState() + ")";
+    }
+}
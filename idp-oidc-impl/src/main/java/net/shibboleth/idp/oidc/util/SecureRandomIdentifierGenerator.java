@@ -0,0 +1,162 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.util;
+
+import com.google.common.io.BaseEncoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Identifier generator backed by one CSPRNG per thread, so that concurrent
+ * callers never contend on a shared generator the way {@link java.util.UUID#randomUUID()}
+ * does. Each thread's generator is seeded from the platform source and reseeded
+ * periodically. Identifiers carry 128 random bits by default and are encoded
+ * as unpadded base64url, 22 characters long.
+ */
+@Component("oidcIdentifierGenerator")
+public class SecureRandomIdentifierGenerator implements IdentifierGenerator {
+    /**
+     * The Log.
+     */
+    private static final Logger LOG = LoggerFactory.getLogger(SecureRandomIdentifierGenerator.class);
+
+    /**
+     * The encoding of identifiers.
+     */
+    private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+    /**
+     * The number of identifiers after which a thread's generator is reseeded.
+     */
+    private static final int RESEED_INTERVAL = 1 << 20;
+
+    /**
+     * The platform source that seeds the per-thread generators.
+     */
+    private static final SecureRandom SEED_SOURCE = new SecureRandom();
+
+    /**
+     * The per-thread generators.
+     */
+    private final ThreadLocal<Generator> generators = new ThreadLocal<Generator>() {
+        @Override
+        protected Generator initialValue() {
+            return new Generator(newSecureRandom());
+        }
+    };
+
+    /**
+     * Number of random bytes per identifier.
+     */
+    private final int length;
+
+    /**
+     * Instantiates a new generator of 16-byte identifiers.
+     */
+    public SecureRandomIdentifierGenerator() {
+        this(16);
+    }
+
+    /**
+     * Instantiates a new generator.
+     *
+     * @param byteLength number of random bytes per identifier
+     */
+    public SecureRandomIdentifierGenerator(final int byteLength) {
+        if (byteLength < 16) {
+            throw new IllegalArgumentException("Identifiers need at least 16 random bytes");
+        }
+        this.length = byteLength;
+    }
+
+    @Override
+    public String generateIdentifier() {
+        final Generator generator = generators.get();
+        if (++generator.count >= RESEED_INTERVAL) {
+            generator.reseed();
+        }
+        final byte[] bytes = new byte[length];
+        generator.random.nextBytes(bytes);
+        return ENCODING.encode(bytes);
+    }
+
+    /**
+     * Create a generator for one thread. Uses SHA1PRNG, whose instances do not share
+     * state, rather than the platform default which may funnel every instance
+     * through one lock.
+     *
+     * @return the secure random
+     */
+    private static SecureRandom newSecureRandom() {
+        SecureRandom random;
+        try {
+            random = SecureRandom.getInstance("SHA1PRNG");
+        } catch (final NoSuchAlgorithmException e) {
+            LOG.warn("SHA1PRNG is not available; falling back to the platform default generator");
+            random = new SecureRandom();
+        }
+        random.setSeed(seed());
+        return random;
+    }
+
+    /**
+     * Draw fresh seed material from the platform source.
+     *
+     * @return the seed
+     */
+    private static byte[] seed() {
+        final byte[] seed = new byte[32];
+        SEED_SOURCE.nextBytes(seed);
+        return seed;
+    }
+
+    /**
+     * A thread's generator and its use count.
+     */
+    private static final class Generator {
+        /**
+         * The Random.
+         */
+        private final SecureRandom random;
+
+        /**
+         * Identifiers generated since the last seeding.
+         */
+        private int count;
+
+        /**
+         * Instantiates a new Generator.
+         *
+         * @param r the random
+         */
+        Generator(final SecureRandom r) {
+            this.random = r;
+        }
+
+        /**
+         * Mix fresh seed material into the generator.
+         */
+        void reseed() {
+            random.setSeed(seed());
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc;
+
+import net.shibboleth.utilities.java.support.service.ReloadableService;
+import net.shibboleth.utilities.java.support.service.ServiceableComponent;
+import org.joda.time.DateTime;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Proxy-based stubs of collaborators and field injection for tests.
+ */
+public final class Stubs {
+    /**
+     * The handler of stubs that answer every call with its default value.
+     */
+    private static final InvocationHandler DEFAULTS = new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            return defaultValue(proxy, method, args);
+        }
+    };
+
+    /**
+     * Instantiates a new Stubs.
+     */
+    private Stubs() {
+    }
+
+    /**
+     * Create a stub of the interface that answers every call with its default value.
+     *
+     * @param type the interface
+     * @param <T>  the type
+     * @return the stub
+     */
+    public static <T> T stub(final Class<T> type) {
+        return stub(type, DEFAULTS);
+    }
+
+    /**
+     * Create a stub of the interface.
+     *
+     * @param type    the interface
+     * @param handler the handler of its calls
+     * @param <T>     the type
+     * @return the stub
+     */
+    public static <T> T stub(final Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /**
+     * Create a reloadable service stub serving a component stub of the given type.
+     *
+     * @param type      the component type
+     * @param component the handler of calls to the component
+     * @param reloaded  the instant the service reports it last reloaded
+     * @return the service
+     */
+    public static ReloadableService<?> service(final Class<?> type, final InvocationHandler component,
+                                               final DateTime reloaded) {
+        final Object serviceable = Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[] {type, ServiceableComponent.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args)
+                            throws Throwable {
+                        if ("getId".equals(method.getName())) {
+                            return "stub";
+                        }
+                        return component.invoke(proxy, method, args);
+                    }
+                });
+        return stub(ReloadableService.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getServiceableComponent".equals(method.getName())) {
+                    return serviceable;
+                }
+                if ("getLastSuccessfulReloadInstant".equals(method.getName())) {
+                    return reloaded;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * Answer a call the stubs do not implement.
+     *
+     * @param proxy  the proxy
+     * @param method the method
+     * @param args   the arguments
+     * @return the identity semantics of the object methods, else the default value of the return type
+     */
+    public static Object defaultValue(final Object proxy, final Method method, final Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "stub";
+            default:
+                break;
+        }
+        if (method.getReturnType() == boolean.class) {
+            return false;
+        }
+        if (method.getReturnType().isPrimitive() && method.getReturnType() != void.class) {
+            return 0;
+        }
+        return null;
+    }
+
+    /**
+     * Set a field the container would autowire, declared by the target's class
+     * or one of its superclasses.
+     *
+     * @param target the target
+     * @param name   the field name
+     * @param value  the value
+     * @throws Exception if the field cannot be set
+     */
+    public static void inject(final Object target, final String name, final Object value) throws Exception {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                final Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            } catch (final NoSuchFieldException e) {
+                continue;
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.shibboleth.idp.oidc.Stubs;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.repository.OAuth2ClientRepository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for the diff mode of {@link ShibbolethClientRepositoryBootstrapper}.
+ */
+public class ShibbolethClientRepositoryBootstrapperTest {
+    /**
+     * The clients in the stub repository, keyed by client id.
+     */
+    private final Map<String, ClientDetailsEntity> stored = new HashMap<>();
+
+    /**
+     * The client ids saved through the stub repository.
+     */
+    private final List<String> saved = new ArrayList<>();
+
+    /**
+     * The Repository.
+     */
+    private OAuth2ClientRepository repository;
+
+    @BeforeMethod
+    public void setUp() {
+        stored.clear();
+        saved.clear();
+        repository = Stubs.stub(OAuth2ClientRepository.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getClientByClientId".equals(method.getName())) {
+                    return stored.get(args[0]);
+                }
+                if ("saveClient".equals(method.getName())) {
+                    final ClientDetailsEntity client = (ClientDetailsEntity) args[0];
+                    saved.add(client.getClientId());
+                    stored.put(client.getClientId(), copy(client, 1L));
+                    return client;
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    @Test
+    public void testUnchangedClientsAreNotSaved() throws Exception {
+        final ClientDetailsEntity client = newClient("client", "https://client.example.org/cb");
+        stored.put("client", copy(client, 7L));
+
+        newBootstrapper(client).bootstrap();
+        Assert.assertTrue(saved.isEmpty());
+    }
+
+    @Test
+    public void testMissingClientsAreSaved() throws Exception {
+        newBootstrapper(newClient("client", "https://client.example.org/cb")).bootstrap();
+        Assert.assertEquals(saved, ImmutableList.of("client"));
+    }
+
+    @Test
+    public void testStoredClientChangedElsewhereIsRestored() throws Exception {
+        final ClientDetailsEntity client = newClient("client", "https://client.example.org/cb");
+        final ClientDetailsEntity other = newClient("other", "https://other.example.org/cb");
+        stored.put("client", copy(client, 7L));
+        stored.put("other", copy(other, 8L));
+        stored.get("client").setRedirectUris(ImmutableSet.of("https://attacker.example.org/cb"));
+
+        newBootstrapper(client, other).bootstrap();
+        Assert.assertEquals(saved, ImmutableList.of("client"));
+        Assert.assertEquals(stored.get("client").getRedirectUris(), client.getRedirectUris());
+    }
+
+    /**
+     * Create a bootstrapper in diff mode over the stub repository.
+     *
+     * @param clients the defined clients
+     * @return the bootstrapper
+     * @throws Exception if the repository cannot be set
+     */
+    private ShibbolethClientRepositoryBootstrapper newBootstrapper(final ClientDetailsEntity... clients)
+            throws Exception {
+        final Set<ClientDetailsEntity> defined = new LinkedHashSet<>();
+        for (final ClientDetailsEntity client : clients) {
+            defined.add(client);
+        }
+        final ShibbolethClientRepositoryBootstrapper bootstrapper = new ShibbolethClientRepositoryBootstrapper(defined);
+        bootstrapper.setMode("diff");
+        bootstrapper.setTransactionManager(Stubs.stub(PlatformTransactionManager.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getTransaction".equals(method.getName())) {
+                    return new SimpleTransactionStatus();
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        }));
+        Stubs.inject(bootstrapper, "clientRepository", repository);
+        return bootstrapper;
+    }
+
+    /**
+     * Create a client definition.
+     *
+     * @param clientId    the client id
+     * @param redirectUri the redirect uri
+     * @return the client
+     */
+    private static ClientDetailsEntity newClient(final String clientId, final String redirectUri) {
+        final ClientDetailsEntity client = new ClientDetailsEntity();
+        client.setClientId(clientId);
+        client.setRedirectUris(ImmutableSet.of(redirectUri));
+        client.setScope(ImmutableSet.of("openid", "profile"));
+        return client;
+    }
+
+    /**
+     * Copy a client the way the repository would store it, with its own id.
+     *
+     * @param client the client
+     * @param id     the id assigned by the repository
+     * @return the stored copy
+     */
+    private static ClientDetailsEntity copy(final ClientDetailsEntity client, final Long id) {
+        final ClientDetailsEntity copy = newClient(client.getClientId(), client.getRedirectUris().iterator().next());
+        copy.setScope(new LinkedHashSet<>(client.getScope()));
+        copy.setId(id);
+        return copy;
+    }
+}
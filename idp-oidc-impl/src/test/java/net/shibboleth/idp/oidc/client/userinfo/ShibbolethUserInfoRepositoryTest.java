@@ -0,0 +1,172 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo;
+
+import net.shibboleth.idp.attribute.filter.AttributeFilter;
+import net.shibboleth.idp.attribute.resolver.AttributeResolver;
+import net.shibboleth.idp.oidc.Stubs;
+import org.joda.time.DateTime;
+import org.mitre.openid.connect.model.UserInfo;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ShibbolethUserInfoRepository}.
+ */
+public class ShibbolethUserInfoRepositoryTest {
+    /**
+     * The number of concurrent callers.
+     */
+    private static final int CALLERS = 100;
+
+    /**
+     * The reload instant reported by the stub services.
+     */
+    private static final DateTime RELOADED = new DateTime(0);
+
+    /**
+     * The calls that reached the attribute resolver.
+     */
+    private final AtomicInteger resolutions = new AtomicInteger();
+
+    /**
+     * Whether the stub resolver fails.
+     */
+    private volatile boolean resolverFails;
+
+    /**
+     * The Repository.
+     */
+    private ShibbolethUserInfoRepository repository;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        resolutions.set(0);
+        resolverFails = false;
+
+        final ClaimMappingEngine claimMappingEngine = new ClaimMappingEngine();
+        claimMappingEngine.initialize();
+
+        repository = new ShibbolethUserInfoRepository();
+        final InvocationHandler resolver = new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if ("resolveAttributes".equals(method.getName())) {
+                    resolutions.incrementAndGet();
+                    Thread.sleep(500);
+                    if (resolverFails) {
+                        throw new IllegalStateException("Resolver is down");
+                    }
+                    return null;
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        };
+        Stubs.inject(repository, "attributeResolverService",
+                Stubs.service(AttributeResolver.class, resolver, RELOADED));
+        Stubs.inject(repository, "attributeFilterService", Stubs.service(AttributeFilter.class,
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        return Stubs.defaultValue(proxy, method, args);
+                    }
+                }, RELOADED));
+        Stubs.inject(repository, "claimMappingEngine", claimMappingEngine);
+        repository.initialize();
+    }
+
+    @Test
+    public void testConcurrentRequestsResolveOnce() throws Exception {
+        final List<UserInfo> results = callConcurrently("jdoe", "client");
+        Assert.assertEquals(resolutions.get(), 1);
+        Assert.assertEquals(results.size(), CALLERS);
+        for (final UserInfo userInfo : results) {
+            Assert.assertEquals(userInfo.getSub(), "jdoe");
+        }
+    }
+
+    @Test
+    public void testOtherRecipientsResolveSeparately() throws Exception {
+        callConcurrently("jdoe", "client");
+        callConcurrently("jdoe", "other");
+        Assert.assertEquals(resolutions.get(), 2);
+    }
+
+    @Test
+    public void testLastKnownGoodServedWhileResolverFails() throws Exception {
+        repository.setCacheTimeToLive(1);
+        repository.initialize();
+
+        Assert.assertEquals(repository.getByUsernameAndClientId("jdoe", "client").getSub(), "jdoe");
+        resolverFails = true;
+        Thread.sleep(10);
+        Assert.assertEquals(repository.getByUsernameAndClientId("jdoe", "client").getSub(), "jdoe");
+        Assert.assertEquals(resolutions.get(), 2);
+    }
+
+    @Test(expectedExceptions = AttributesUnavailableException.class)
+    public void testUnavailableWithoutLastKnownGood() throws Exception {
+        resolverFails = true;
+        repository.getByUsernameAndClientId("jdoe", "client");
+    }
+
+    /**
+     * Call the repository from {@value #CALLERS} threads released together.
+     *
+     * @param username    the username
+     * @param recipientId the recipient id
+     * @return the userinfo each caller received
+     * @throws Exception if a caller fails
+     */
+    private List<UserInfo> callConcurrently(final String username, final String recipientId) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(CALLERS);
+        try {
+            final List<Future<UserInfo>> futures = new ArrayList<>(CALLERS);
+            for (int i = 0; i < CALLERS; i++) {
+                futures.add(pool.submit(new Callable<UserInfo>() {
+                    @Override
+                    public UserInfo call() throws Exception {
+                        start.await();
+                        return repository.getByUsernameAndClientId(username, recipientId);
+                    }
+                }));
+            }
+            start.countDown();
+            final List<UserInfo> results = new ArrayList<>(CALLERS);
+            for (final Future<UserInfo> future : futures) {
+                results.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
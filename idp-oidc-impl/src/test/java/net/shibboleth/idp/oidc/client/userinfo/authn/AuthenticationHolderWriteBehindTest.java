@@ -0,0 +1,190 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import net.shibboleth.idp.oidc.Stubs;
+import org.mitre.oauth2.model.AuthenticationHolderEntity;
+import org.mitre.oauth2.model.OAuth2AccessTokenEntity;
+import org.mitre.oauth2.repository.AuthenticationHolderRepository;
+import org.mitre.oauth2.repository.OAuth2TokenRepository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests that {@link AuthenticationHolderWriteBehind} does not lose tokens whose holder cannot be written behind.
+ */
+public class AuthenticationHolderWriteBehindTest {
+    /**
+     * The number of holder saves the stub repository fails before it succeeds.
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * The ids assigned by the stub repository.
+     */
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * The tokens saved through the stub repository.
+     */
+    private final List<OAuth2AccessTokenEntity> savedTokens = new CopyOnWriteArrayList<>();
+
+    /**
+     * The Write behind.
+     */
+    private AuthenticationHolderWriteBehind writeBehind;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        failures.set(0);
+        savedTokens.clear();
+
+        writeBehind = new AuthenticationHolderWriteBehind();
+        Stubs.inject(writeBehind, "holderRepository", Stubs.stub(AuthenticationHolderRepository.class,
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("save".equals(method.getName())) {
+                            if (failures.getAndDecrement() > 0) {
+                                throw new IllegalStateException("Database is down");
+                            }
+                            final AuthenticationHolderEntity saved = new AuthenticationHolderEntity();
+                            saved.setId(ids.incrementAndGet());
+                            return saved;
+                        }
+                        return Stubs.defaultValue(proxy, method, args);
+                    }
+                }));
+        Stubs.inject(writeBehind, "tokenRepository", Stubs.stub(OAuth2TokenRepository.class,
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("saveAccessToken".equals(method.getName())) {
+                            savedTokens.add((OAuth2AccessTokenEntity) args[0]);
+                            return args[0];
+                        }
+                        return Stubs.defaultValue(proxy, method, args);
+                    }
+                }));
+        writeBehind.setTransactionManager(Stubs.stub(PlatformTransactionManager.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getTransaction".equals(method.getName())) {
+                    return new SimpleTransactionStatus();
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        }));
+        writeBehind.setMaxAttempts(1);
+        writeBehind.setFlushInterval(20);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        writeBehind.destroy();
+    }
+
+    @Test
+    public void testQueuedTokenSavedDirectlyAfterLastAttempt() throws Exception {
+        failures.set(2);
+        writeBehind.initialize();
+
+        final AuthenticationHolderEntity holder = writeBehind.save(new AuthenticationHolderEntity());
+        final OAuth2AccessTokenEntity token = newToken("queued", holder);
+        Assert.assertTrue(writeBehind.attach(token));
+
+        awaitSavedTokens(1);
+        Assert.assertSame(savedTokens.get(0), token);
+        Assert.assertNotNull(token.getAuthenticationHolder().getId());
+        Assert.assertNotNull(holder.getId());
+        Assert.assertNull(writeBehind.getPendingToken(token.getValue()));
+    }
+
+    @Test
+    public void testFailedHolderSavedByNextAttach() throws Exception {
+        failures.set(3);
+        writeBehind.initialize();
+
+        final AuthenticationHolderEntity holder = writeBehind.save(new AuthenticationHolderEntity());
+        final OAuth2AccessTokenEntity queued = newToken("queued", holder);
+        Assert.assertTrue(writeBehind.attach(queued));
+        awaitFailures();
+        Assert.assertSame(writeBehind.getPendingToken(queued.getValue()), queued);
+
+        final OAuth2AccessTokenEntity next = newToken("next", holder);
+        Assert.assertFalse(writeBehind.attach(next));
+        Assert.assertNotNull(next.getAuthenticationHolder().getId());
+        Assert.assertEquals(savedTokens.size(), 1);
+        Assert.assertSame(savedTokens.get(0), queued);
+        Assert.assertNull(writeBehind.getPendingToken(queued.getValue()));
+    }
+
+    /**
+     * Create a token against the holder.
+     *
+     * @param jti    the token id
+     * @param holder the holder
+     * @return the token
+     */
+    private static OAuth2AccessTokenEntity newToken(final String jti, final AuthenticationHolderEntity holder) {
+        final OAuth2AccessTokenEntity token = new OAuth2AccessTokenEntity();
+        token.setJwt(new PlainJWT(new JWTClaimsSet.Builder().jwtID(jti).build()));
+        token.setAuthenticationHolder(holder);
+        return token;
+    }
+
+    /**
+     * Wait until the stub repository has saved the given number of tokens.
+     *
+     * @param expected the number of tokens
+     * @throws InterruptedException if interrupted
+     */
+    private void awaitSavedTokens(final int expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (savedTokens.size() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals(savedTokens.size(), expected);
+    }
+
+    /**
+     * Wait until the stub repository has failed every save it was set to fail.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private void awaitFailures() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (failures.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+        Assert.assertEquals(failures.get(), 0);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.client.userinfo.authn;
+
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.mitre.jwt.encryption.service.JWTEncryptionAndDecryptionService;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ClientEncrypterCache} against a JWKS served from a local HTTP server.
+ */
+public class ClientEncrypterCacheTest {
+    /**
+     * The requests served by the stub.
+     */
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * The status the stub answers with.
+     */
+    private volatile int status;
+
+    /**
+     * How long the stub waits before answering, in milliseconds.
+     */
+    private volatile long delay;
+
+    /**
+     * The stub.
+     */
+    private HttpServer server;
+
+    /**
+     * The Http client.
+     */
+    private CloseableHttpClient httpClient;
+
+    /**
+     * The Client.
+     */
+    private ClientDetailsEntity client;
+
+    /**
+     * The Cache.
+     */
+    private ClientEncrypterCache cache;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final RSAKey key = new RSAKey.Builder((RSAPublicKey) generator.generateKeyPair().getPublic())
+                .keyID("enc1").build();
+        final byte[] jwks = new JWKSet(key).toJSONObject().toString().getBytes(StandardCharsets.UTF_8);
+
+        requests.set(0);
+        status = 200;
+        delay = 0;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/jwks", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(delay);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                final byte[] body = status == 200 ? jwks : "error".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        client = new ClientDetailsEntity();
+        client.setClientId("client");
+        client.setJwksUri("http://127.0.0.1:" + server.getAddress().getPort() + "/jwks");
+
+        httpClient = HttpClientBuilder.create().build();
+        cache = new ClientEncrypterCache();
+        cache.setHttpClient(httpClient);
+        cache.setExecutor(new SimpleAsyncTaskExecutor("jwks-refresh-"));
+        cache.setJitter(0);
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        server.stop(0);
+        httpClient.close();
+    }
+
+    @Test
+    public void testConcurrentMissesFetchOnce() throws Exception {
+        delay = 500;
+        final int callers = 20;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            final List<Future<JWTEncryptionAndDecryptionService>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(pool.submit(new Callable<JWTEncryptionAndDecryptionService>() {
+                    @Override
+                    public JWTEncryptionAndDecryptionService call() throws Exception {
+                        start.await();
+                        return cache.getEncrypter(client);
+                    }
+                }));
+            }
+            start.countDown();
+            for (final Future<JWTEncryptionAndDecryptionService> result : results) {
+                Assert.assertNotNull(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        Assert.assertEquals(requests.get(), 1);
+    }
+
+    @Test
+    public void testRefreshAheadBeforeExpiry() throws Exception {
+        cache.setTimeToLive(5000);
+        cache.setRefreshAhead(4800);
+
+        final JWTEncryptionAndDecryptionService first = cache.getEncrypter(client);
+        Assert.assertNotNull(first);
+        Assert.assertEquals(requests.get(), 1);
+
+        Thread.sleep(400);
+        Assert.assertSame(cache.getEncrypter(client), first);
+        awaitRequests(2);
+
+        final JWTEncryptionAndDecryptionService refreshed = awaitRefreshed(first);
+        Assert.assertNotSame(refreshed, first);
+        Assert.assertEquals(requests.get(), 2);
+    }
+
+    @Test
+    public void testStaleServedDuringGracePeriod() throws Exception {
+        cache.setTimeToLive(200);
+        cache.setRefreshAhead(0);
+        cache.setGracePeriod(60000);
+
+        final JWTEncryptionAndDecryptionService first = cache.getEncrypter(client);
+        Assert.assertNotNull(first);
+
+        status = 500;
+        Thread.sleep(400);
+        Assert.assertSame(cache.getEncrypter(client), first);
+        awaitRequests(2);
+        Thread.sleep(200);
+        Assert.assertSame(cache.getEncrypter(client), first);
+    }
+
+    @Test
+    public void testNothingServedAfterGracePeriod() throws Exception {
+        cache.setTimeToLive(100);
+        cache.setRefreshAhead(0);
+        cache.setGracePeriod(100);
+
+        Assert.assertNotNull(cache.getEncrypter(client));
+        status = 500;
+        Thread.sleep(400);
+        Assert.assertNull(cache.getEncrypter(client));
+    }
+
+    @Test
+    public void testSweepRefreshesReadEntries() throws Exception {
+        cache.setTimeToLive(5000);
+        cache.setRefreshAhead(4800);
+
+        Assert.assertNotNull(cache.getEncrypter(client));
+        Thread.sleep(400);
+        cache.refreshDue();
+        awaitRequests(2);
+    }
+
+    @Test
+    public void testSweepLetsUnreadEntriesAgeOut() throws Exception {
+        cache.setTimeToLive(1000);
+        cache.setRefreshAhead(800);
+        cache.setGracePeriod(60000);
+
+        Assert.assertNotNull(cache.getEncrypter(client));
+        Thread.sleep(300);
+        cache.refreshDue();
+        awaitRequests(2);
+
+        Thread.sleep(400);
+        cache.refreshDue();
+        Thread.sleep(100);
+        Assert.assertEquals(requests.get(), 2);
+
+        Thread.sleep(700);
+        cache.refreshDue();
+        Assert.assertNotNull(cache.getEncrypter(client));
+        Assert.assertEquals(requests.get(), 3);
+    }
+
+    /**
+     * Wait until the stub has served the given number of requests.
+     *
+     * @param expected the number of requests
+     * @throws InterruptedException if interrupted
+     */
+    private void awaitRequests(final int expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (requests.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertTrue(requests.get() >= expected, "The stub served " + requests.get() + " request(s)");
+    }
+
+    /**
+     * Wait until the cache serves an encrypter other than the given one.
+     *
+     * @param previous the encrypter served before the refresh
+     * @return the refreshed encrypter
+     * @throws InterruptedException if interrupted
+     */
+    private JWTEncryptionAndDecryptionService awaitRefreshed(final JWTEncryptionAndDecryptionService previous)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        JWTEncryptionAndDecryptionService current = cache.getEncrypter(client);
+        while (current == previous && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            current = cache.getEncrypter(client);
+        }
+        return current;
+    }
+}
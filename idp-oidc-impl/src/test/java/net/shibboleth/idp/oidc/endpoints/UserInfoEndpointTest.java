@@ -0,0 +1,247 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.endpoints;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.filter.AttributeFilter;
+import net.shibboleth.idp.attribute.filter.context.AttributeFilterContext;
+import net.shibboleth.idp.attribute.resolver.AttributeResolver;
+import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
+import net.shibboleth.idp.oidc.Stubs;
+import net.shibboleth.idp.oidc.client.userinfo.ClaimMappingEngine;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethScopeClaimTranslationService;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoRepository;
+import net.shibboleth.idp.oidc.client.userinfo.ShibbolethUserInfoService;
+import org.joda.time.DateTime;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.springframework.http.MediaType;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.web.servlet.ModelAndView;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests that custom claims released by scope reach the response of {@link UserInfoEndpoint}.
+ */
+public class UserInfoEndpointTest {
+    /**
+     * The reload instant reported by the stub services.
+     */
+    private static final DateTime RELOADED = new DateTime(0);
+
+    /**
+     * The attribute ids the stub resolver was asked for.
+     */
+    private final List<String> requested = new ArrayList<>();
+
+    /**
+     * The Endpoint.
+     */
+    private UserInfoEndpoint endpoint;
+
+    /**
+     * The View.
+     */
+    private StreamingUserInfoView view;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        requested.clear();
+
+        final ClaimMappingEngine claimMappingEngine = new ClaimMappingEngine();
+        claimMappingEngine.setClaimAttributes("groups:isMemberOf");
+        claimMappingEngine.setMultiValuedClaims("groups");
+        claimMappingEngine.initialize();
+
+        final ShibbolethScopeClaimTranslationService translator = new ShibbolethScopeClaimTranslationService();
+        translator.setCustomClaimScopes("groups:profile");
+
+        final ShibbolethUserInfoRepository repository = new ShibbolethUserInfoRepository();
+        Stubs.inject(repository, "attributeResolverService", Stubs.service(AttributeResolver.class,
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("resolveAttributes".equals(method.getName())) {
+                            final AttributeResolutionContext context = (AttributeResolutionContext) args[0];
+                            requested.addAll(context.getRequestedIdPAttributeNames());
+                            final IdPAttribute groups = new IdPAttribute("isMemberOf");
+                            groups.setValues(ImmutableList.of(new StringAttributeValue("staff"),
+                                    new StringAttributeValue("faculty")));
+                            context.setResolvedIdPAttributes(Collections.singleton(groups));
+                            return null;
+                        }
+                        return Stubs.defaultValue(proxy, method, args);
+                    }
+                }, RELOADED));
+        Stubs.inject(repository, "attributeFilterService", Stubs.service(AttributeFilter.class,
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("filterAttributes".equals(method.getName())) {
+                            final AttributeFilterContext context = (AttributeFilterContext) args[0];
+                            context.setFilteredIdPAttributes(context.getPrefilteredIdPAttributes().values());
+                            return null;
+                        }
+                        return Stubs.defaultValue(proxy, method, args);
+                    }
+                }, RELOADED));
+        Stubs.inject(repository, "claimMappingEngine", claimMappingEngine);
+        Stubs.inject(repository, "scopeClaimTranslationService", translator);
+        repository.setSelectiveResolution(true);
+        repository.initialize();
+
+        final ClientDetailsEntity client = new ClientDetailsEntity();
+        client.setClientId("client");
+        final ClientDetailsEntityService clientService = Stubs.stub(ClientDetailsEntityService.class,
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("loadClientByClientId".equals(method.getName())) {
+                            return client;
+                        }
+                        return Stubs.defaultValue(proxy, method, args);
+                    }
+                });
+
+        final ShibbolethUserInfoService userInfoService = new ShibbolethUserInfoService();
+        Stubs.inject(userInfoService, "userInfoRepository", repository);
+        Stubs.inject(userInfoService, "clientService", clientService);
+
+        endpoint = new UserInfoEndpoint();
+        endpoint.setAsync(false);
+        endpoint.initialize();
+        Stubs.inject(endpoint, "userInfoService", userInfoService);
+        Stubs.inject(endpoint, "clientService", clientService);
+        Stubs.inject(endpoint, "translator", translator);
+
+        view = new StreamingUserInfoView();
+        Stubs.inject(view, "translator", translator);
+    }
+
+    @Test
+    public void testCustomMultiValuedClaimReleasedByScope() throws Exception {
+        final Map<String, String> headers = new HashMap<>();
+        final JsonObject userInfo = render(newAuthentication("openid", "profile"), headers);
+
+        Assert.assertTrue(requested.contains("isMemberOf"));
+        Assert.assertEquals(userInfo.get("sub").getAsString(), "jdoe");
+        final JsonArray groups = new JsonArray();
+        groups.add(new JsonPrimitive("staff"));
+        groups.add(new JsonPrimitive("faculty"));
+        Assert.assertEquals(userInfo.get("groups"), groups);
+        Assert.assertNotNull(headers.get("ETag"));
+    }
+
+    @Test
+    public void testCustomClaimWithheldWithoutScope() throws Exception {
+        final JsonObject userInfo = render(newAuthentication("openid"), new HashMap<String, String>());
+
+        Assert.assertFalse(requested.contains("isMemberOf"));
+        Assert.assertEquals(userInfo.get("sub").getAsString(), "jdoe");
+        Assert.assertFalse(userInfo.has("groups"));
+    }
+
+    /**
+     * Call the endpoint and render its view.
+     *
+     * @param auth    the authentication
+     * @param headers the headers set on the response
+     * @return the userinfo written to the response
+     * @throws Exception if the view cannot be rendered
+     */
+    private JsonObject render(final OAuth2Authentication auth, final Map<String, String> headers)
+            throws Exception {
+        final ModelAndView mav = (ModelAndView) endpoint.getInfo(null, MediaType.APPLICATION_JSON_VALUE, null, auth)
+                .getResult();
+        Assert.assertEquals(mav.getViewName(), StreamingUserInfoView.VIEWNAME);
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final ServletOutputStream out = new ServletOutputStream() {
+            @Override
+            public void write(final int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+            }
+        };
+        final HttpServletResponse response = Stubs.stub(HttpServletResponse.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("setHeader".equals(method.getName())) {
+                    headers.put((String) args[0], (String) args[1]);
+                    return null;
+                }
+                if ("getOutputStream".equals(method.getName())) {
+                    return out;
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        });
+        view.render(mav.getModel(), Stubs.stub(HttpServletRequest.class), response);
+        return new JsonParser().parse(new String(body.toByteArray(), StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    /**
+     * Create the authentication of an access token granted to jdoe.
+     *
+     * @param scopes the granted scopes
+     * @return the authentication
+     */
+    private static OAuth2Authentication newAuthentication(final String... scopes) {
+        final Set<String> scope = ImmutableSet.copyOf(scopes);
+        final OAuth2Request request = new OAuth2Request(new HashMap<String, String>(), "client",
+                Collections.<GrantedAuthority>emptyList(), true, scope, Collections.<String>emptySet(), null,
+                Collections.<String>emptySet(), new HashMap<String, Serializable>());
+        return new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken("jdoe", "N/A",
+                Collections.<GrantedAuthority>emptyList()));
+    }
+}
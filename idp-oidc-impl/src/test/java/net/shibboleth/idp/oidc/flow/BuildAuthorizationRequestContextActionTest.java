@@ -0,0 +1,179 @@
+/*
+ * Licensed to the University Corporation for Advanced Internet Development,
+ * Inc. (UCAID) under one or more contributor license agreements. See the
+ * NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The UCAID licenses this file to You under the Apache
+ * License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.shibboleth.idp.oidc.flow;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import net.shibboleth.idp.authn.AuthenticationFlowDescriptor;
+import net.shibboleth.idp.oidc.Stubs;
+import net.shibboleth.idp.profile.context.RelyingPartyContext;
+import net.shibboleth.idp.saml.authn.principal.AuthnContextClassRefPrincipal;
+import org.mitre.oauth2.model.ClientDetailsEntity;
+import org.mitre.oauth2.service.ClientDetailsEntityService;
+import org.opensaml.profile.context.ProfileRequestContext;
+import org.springframework.security.oauth2.provider.AuthorizationRequest;
+import org.springframework.security.oauth2.provider.OAuth2RequestFactory;
+import org.springframework.webflow.context.servlet.ServletExternalContext;
+import org.springframework.webflow.execution.Event;
+import org.springframework.webflow.test.MockRequestContext;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that the client is loaded once per authorization flow.
+ */
+public class BuildAuthorizationRequestContextActionTest {
+    /**
+     * The Client id.
+     */
+    private static final String CLIENT_ID = "client";
+
+    /**
+     * The Redirect uri.
+     */
+    private static final String REDIRECT_URI = "https://client.example.org/cb";
+
+    /**
+     * The calls that reached the client service.
+     */
+    private final AtomicInteger loads = new AtomicInteger();
+
+    /**
+     * The Action.
+     */
+    private BuildAuthorizationRequestContextAction action;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        loads.set(0);
+        final ClientDetailsEntity client = new ClientDetailsEntity();
+        client.setClientId(CLIENT_ID);
+        client.setRedirectUris(ImmutableSet.of(REDIRECT_URI));
+
+        action = new BuildAuthorizationRequestContextAction();
+        Stubs.inject(action, "clientService", Stubs.stub(ClientDetailsEntityService.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("loadClientByClientId".equals(method.getName())) {
+                    loads.incrementAndGet();
+                    return CLIENT_ID.equals(args[0]) ? client : null;
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        }));
+        Stubs.inject(action, "authRequestFactory", Stubs.stub(OAuth2RequestFactory.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("createAuthorizationRequest".equals(method.getName())) {
+                    @SuppressWarnings("unchecked")
+                    final Map<String, String> parameters = (Map<String, String>) args[0];
+                    final AuthorizationRequest request = new AuthorizationRequest(parameters.get("client_id"),
+                            ImmutableSet.of(parameters.get("scope")));
+                    request.setRedirectUri(parameters.get("redirect_uri"));
+                    request.setResponseTypes(ImmutableSet.of(parameters.get("response_type")));
+                    return request;
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        }));
+    }
+
+    @Test
+    public void testClientLoadedOnce() throws Exception {
+        final ProfileRequestContext profileRequestContext = new ProfileRequestContext();
+        final Event event = action.doExecute(newRequestContext(), profileRequestContext);
+        Assert.assertEquals(event.getId(), Events.Success.id());
+
+        final OIDCAuthorizationRequestContext authZContext =
+                profileRequestContext.getSubcontext(OIDCAuthorizationRequestContext.class);
+        Assert.assertNotNull(authZContext);
+        Assert.assertEquals(authZContext.getClient().getClientId(), CLIENT_ID);
+        Assert.assertEquals(authZContext.getClientLoadCount(), 1);
+        Assert.assertEquals(loads.get(), 1);
+    }
+
+    @Test
+    public void testClientLoadedOncePerFlow() throws Exception {
+        final ProfileRequestContext profileRequestContext = new ProfileRequestContext();
+        final MockRequestContext requestContext = newRequestContext();
+
+        final BuildAuthenticationContextAction buildAuthenticationContext = new BuildAuthenticationContextAction();
+        buildAuthenticationContext.setAvailableAuthenticationFlows(
+                Collections.<AuthenticationFlowDescriptor>emptyList());
+        buildAuthenticationContext.setAuthenticationPrincipalWeightMap(
+                ImmutableMap.of(new AuthnContextClassRefPrincipal("urn:example:acr"), 1));
+
+        Assert.assertEquals(action.doExecute(requestContext, profileRequestContext).getId(),
+                Events.Success.id());
+        Assert.assertEquals(new BuildRelyingPartyContextAction()
+                .doExecute(requestContext, profileRequestContext).getId(), Events.Success.id());
+        Assert.assertEquals(new BuildMetadataContextAction()
+                .doExecute(requestContext, profileRequestContext).getId(), Events.Success.id());
+        Assert.assertEquals(new CheckAuthenticationRequiredAction()
+                .doExecute(requestContext, profileRequestContext).getId(), Events.SessionNotFound.id());
+        Assert.assertEquals(buildAuthenticationContext
+                .doExecute(requestContext, profileRequestContext).getId(), Events.Success.id());
+
+        final OIDCAuthorizationRequestContext authZContext =
+                profileRequestContext.getSubcontext(OIDCAuthorizationRequestContext.class);
+        Assert.assertEquals(profileRequestContext.getSubcontext(RelyingPartyContext.class).getRelyingPartyId(),
+                CLIENT_ID);
+        Assert.assertEquals(authZContext.getClientLoadCount(), 1);
+        Assert.assertEquals(loads.get(), 1);
+    }
+
+    /**
+     * Create a request context for an authorization request of the client.
+     *
+     * @return the request context
+     */
+    private static MockRequestContext newRequestContext() {
+        final Map<String, String[]> parameters = ImmutableMap.of(
+                "client_id", new String[] {CLIENT_ID},
+                "redirect_uri", new String[] {REDIRECT_URI},
+                "response_type", new String[] {"code"},
+                "scope", new String[] {"openid"});
+        final HttpSession session = Stubs.stub(HttpSession.class);
+        final HttpServletRequest request = Stubs.stub(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("getParameterMap".equals(method.getName())) {
+                    return parameters;
+                }
+                if ("getSession".equals(method.getName())) {
+                    return session;
+                }
+                return Stubs.defaultValue(proxy, method, args);
+            }
+        });
+        final MockRequestContext requestContext = new MockRequestContext();
+        requestContext.setExternalContext(new ServletExternalContext(Stubs.stub(ServletContext.class),
+                request, Stubs.stub(HttpServletResponse.class)));
+        return requestContext;
+    }
+}
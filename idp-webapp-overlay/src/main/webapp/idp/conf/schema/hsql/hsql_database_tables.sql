@@ -382,3 +382,14 @@ CREATE TABLE IF NOT EXISTS device_code_request_parameter (
 	param VARCHAR(2048),
 	val VARCHAR(2048)
 );
+
+CREATE TABLE IF NOT EXISTS revoked_token (
+	jti VARCHAR(256) NOT NULL PRIMARY KEY,
+	expiration TIMESTAMP,
+	revoked_at TIMESTAMP NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS client_change (
+	client_id VARCHAR(256) NOT NULL PRIMARY KEY,
+	changed_at TIMESTAMP NOT NULL
+);
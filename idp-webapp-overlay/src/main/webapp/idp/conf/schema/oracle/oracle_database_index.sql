@@ -15,3 +15,5 @@ CREATE INDEX ahrt_oi_idx ON authentication_holder_response_type(owner_id);
 CREATE INDEX ahs_oi_idx ON authentication_holder_scope(owner_id);
 CREATE INDEX ac_ahi_idx ON authorization_code(auth_holder_id);
 CREATE INDEX suaa_oi_idx ON saved_user_auth_authority(owner_id);
+CREATE INDEX rt_ra_idx ON revoked_token(revoked_at);
+CREATE INDEX cc_ca_idx ON client_change(changed_at);
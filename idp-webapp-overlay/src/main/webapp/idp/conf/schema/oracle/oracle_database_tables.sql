@@ -418,3 +418,14 @@ CREATE TABLE IF NOT EXISTS device_code_request_parameter (
 	param VARCHAR2(2048),
 	val VARCHAR2(2048)
 );
+
+CREATE TABLE IF NOT EXISTS revoked_token (
+	jti VARCHAR2(256) NOT NULL PRIMARY KEY,
+	expiration TIMESTAMP,
+	revoked_at TIMESTAMP NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS client_change (
+	client_id VARCHAR2(256) NOT NULL PRIMARY KEY,
+	changed_at TIMESTAMP NOT NULL
+);
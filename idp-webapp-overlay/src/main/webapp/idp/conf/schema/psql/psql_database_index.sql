@@ -16,3 +16,5 @@ CREATE INDEX IF NOT EXISTS ahrt_oi_idx ON authentication_holder_response_type(ow
 CREATE INDEX IF NOT EXISTS ahs_oi_idx ON authentication_holder_scope(owner_id);
 CREATE INDEX IF NOT EXISTS ac_ahi_idx ON authorization_code(auth_holder_id);
 CREATE INDEX IF NOT EXISTS suaa_oi_idx ON saved_user_auth_authority(owner_id);
+CREATE INDEX IF NOT EXISTS rt_ra_idx ON revoked_token(revoked_at);
+CREATE INDEX IF NOT EXISTS cc_ca_idx ON client_change(changed_at);